@@ -85,6 +85,11 @@ public class AutoGrader {
     return value;
   }
 
+  String getStringArgument(String key, String defaultValue) {
+    String value = testArgs.get(key);
+    return (value != null) ? value : defaultValue;
+  }
+
   int getIntegerArgument(String key) {
     try {
       return Integer.parseInt(getStringArgument(key));
@@ -95,6 +100,13 @@ public class AutoGrader {
     }
   }
 
+  int getIntegerArgument(String key, int defaultValue) {
+    if (testArgs.get(key) == null)
+      return defaultValue;
+
+    return getIntegerArgument(key);
+  }
+
   boolean getBooleanArgument(String key) {
     String value = getStringArgument(key);
 
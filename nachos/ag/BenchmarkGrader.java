@@ -0,0 +1,466 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * An autograder that measures the cost of kernel primitives, instead of
+ * testing them. Select it with <tt>-- nachos.ag.BenchmarkGrader</tt>.
+ *
+ * <p>
+ * Every benchmark runs <tt>warmup</tt> untimed iterations, to let the JVM
+ * compile the code being measured, followed by <tt>iterations</tt> timed
+ * ones. The report gives, for each benchmark, the mean host time per
+ * operation with its standard deviation over the timed iterations, and the
+ * number of simulated ticks per operation. The tick count does not depend
+ * on the host, so it is exactly repeatable from run to run.
+ *
+ * <p>
+ * The benchmarks are:
+ *
+ * <dl>
+ * <dt><tt>fork</tt><dd>fork a thread that does nothing, and join it.
+ * <dt><tt>yield</tt><dd>two threads yielding to each other.
+ * <dt><tt>semaphore</tt><dd>two threads passing control back and forth
+ *     with a pair of semaphores.
+ * <dt><tt>lock</tt><dd>the same, with a lock and a condition variable.
+ * <dt><tt>communicator</tt><dd>one thread speaking to another.
+ * <dt><tt>queue</tt><dd>for each scheduler and number of waiting threads,
+ *     hand a thread queue from its holder to the next waiting thread, and
+ *     put the holder back in the queue. This is done both on a queue that
+ *     transfers priority, as a lock's would, and on one that does not.
+ * <dt><tt>interrupt</tt><dd>for each number of pending interrupts, fire an
+ *     interrupt and schedule another in its place.
+ * <dt><tt>processor</tt><dd>once the other benchmarks are done, run the
+ *     kernel as usual, and report how quickly the processor executes the
+ *     user programs it runs (such as <tt>-x matmult.coff</tt>).
+ * </dl>
+ *
+ * <p>
+ * These autograder arguments (see <tt>-#</tt>) control the benchmarks. Lists
+ * are separated by colons.
+ *
+ * <dl>
+ * <dt><tt>benchmarks</tt><dd>the benchmarks to run. Default: all of them.
+ * <dt><tt>warmup</tt>, <tt>iterations</tt><dd>the number of untimed and
+ *     timed iterations. Default: 3 and 5.
+ * <dt><tt>operations</tt><dd>the operations in each iteration. Default:
+ *     10000.
+ * <dt><tt>schedulers</tt><dd>the schedulers whose queues to measure, as
+ *     class names, by default in <tt>nachos.threads</tt>. Default:
+ *     <tt>PriorityScheduler:LotteryScheduler:StrideScheduler</tt>.
+ * <dt><tt>waiters</tt><dd>the number of threads waiting on a queue.
+ *     Default: <tt>10:100:1000:10000</tt>.
+ * <dt><tt>interrupts</tt><dd>the number of pending interrupts. Default:
+ *     <tt>1:100:10000</tt>.
+ * </dl>
+ */
+public class BenchmarkGrader extends AutoGrader {
+  void init() {
+    benchmarks = getStringArgument("benchmarks", null);
+    warmup = getIntegerArgument("warmup", 3);
+    iterations = getIntegerArgument("iterations", 5);
+    operations = getIntegerArgument("operations", 10000);
+
+    Lib.assertTrue(warmup >= 0 && iterations > 0 && operations > 0,
+                   "bad benchmark iteration counts");
+  }
+
+  void run() {
+    System.out.println(pad("Benchmark", -40) + pad("Param", 8) +
+                       pad("ns/op", 14) + pad("+/-", 12) +
+                       pad("ticks/op", 12));
+
+    if (isSelected("fork"))
+      measure("fork/join", "", new Benchmark() {
+          long run(int n) {
+            Runnable nothing = new Runnable() {
+                public void run() {}
+              };
+
+            for (int i = 0; i < n; i++) {
+              KThread thread = new KThread(nothing);
+              thread.fork();
+              thread.join();
+            }
+            return n;
+          }
+        });
+
+    if (isSelected("yield"))
+      measure("yield", "", new Benchmark() {
+          long run(final int n) {
+            KThread partner = new KThread(new Runnable() {
+                public void run() {
+                  for (int i = 0; i < n; i++)
+                    KThread.yield();
+                }
+              });
+            partner.fork();
+
+            for (int i = 0; i < n; i++)
+              KThread.yield();
+            partner.join();
+            return 2 * (long)n;
+          }
+        });
+
+    if (isSelected("semaphore"))
+      measure("semaphore ping-pong", "", new Benchmark() {
+          long run(final int n) {
+            final Semaphore ping = new Semaphore(0);
+            final Semaphore pong = new Semaphore(0);
+
+            KThread partner = new KThread(new Runnable() {
+                public void run() {
+                  for (int i = 0; i < n; i++) {
+                    ping.P();
+                    pong.V();
+                  }
+                }
+              });
+            partner.fork();
+
+            for (int i = 0; i < n; i++) {
+              ping.V();
+              pong.P();
+            }
+            partner.join();
+            return n;
+          }
+        });
+
+    if (isSelected("lock"))
+      measure("lock/condition ping-pong", "", new Benchmark() {
+          long run(final int n) {
+            final PingPong table = new PingPong();
+
+            KThread partner = new KThread(new Runnable() {
+                public void run() { table.play(n, 1); }
+              });
+            partner.fork();
+
+            table.play(n, 0);
+            partner.join();
+            return n;
+          }
+        });
+
+    if (isSelected("communicator"))
+      measure("communicator speak/listen", "", new Benchmark() {
+          long run(final int n) {
+            final Communicator communicator = new Communicator();
+
+            KThread speaker = new KThread(new Runnable() {
+                public void run() {
+                  for (int i = 0; i < n; i++)
+                    communicator.speak(i);
+                }
+              });
+            speaker.fork();
+
+            for (int i = 0; i < n; i++)
+              communicator.listen();
+            speaker.join();
+            return n;
+          }
+        });
+
+    if (isSelected("queue")) {
+      String[] schedulers =
+        getListArgument("schedulers",
+                        "PriorityScheduler:LotteryScheduler:StrideScheduler");
+      String[] waiters = getListArgument("waiters", "10:100:1000:10000");
+
+      for (int i = 0; i < schedulers.length; i++) {
+        String className = schedulers[i];
+        if (className.indexOf('.') < 0)
+          className = "nachos.threads." + className;
+
+        for (int j = 0; j < waiters.length; j++) {
+          int numWaiters = Integer.parseInt(waiters[j]);
+
+          measure(schedulers[i] + " wait queue", waiters[j],
+                  new QueueBenchmark(className, numWaiters, false));
+          measure(schedulers[i] + " lock queue", waiters[j],
+                  new QueueBenchmark(className, numWaiters, true));
+        }
+      }
+    }
+
+    if (isSelected("interrupt")) {
+      String[] interrupts = getListArgument("interrupts", "1:100:10000");
+
+      for (int i = 0; i < interrupts.length; i++) {
+        InterruptBenchmark benchmark =
+          new InterruptBenchmark(Integer.parseInt(interrupts[i]));
+        measure("interrupt schedule/fire", interrupts[i], benchmark);
+        benchmark.stop();
+      }
+    }
+
+    if (isSelected("processor")) {
+      privilege.addExitNotificationHandler(new Runnable() {
+          public void run() { reportProcessor(); }
+        });
+    }
+
+    kernel.run();
+    kernel.terminate();
+  }
+
+  /**
+   * Notify the autograder that <tt>Processor.run()</tt> was invoked. The
+   * first time, the processor benchmark starts timing.
+   *
+   * @param	privilege	proves the authenticity of this call.
+   */
+  public void runProcessor(Privilege privilege) {
+    super.runProcessor(privilege);
+
+    if (processorStartTime == 0) {
+      processorStartTime = System.nanoTime();
+      processorStartInstructions = privilege.stats.numInstructions;
+    }
+  }
+
+  private void reportProcessor() {
+    if (processorStartTime == 0)
+      return;
+
+    long time = System.nanoTime() - processorStartTime;
+    long instructions =
+      privilege.stats.numInstructions - processorStartInstructions;
+
+    System.out.println("\nprocessor: " + instructions + " instructions in " +
+                       time / 1000000 + " ms, " +
+                       (time == 0 ? 0 : instructions * 1000 / time) +
+                       " MIPS");
+  }
+
+  /**
+   * Run <i>benchmark</i> as configured, and print a line of the report.
+   */
+  private void measure(String name, String param, Benchmark benchmark) {
+    for (int i = 0; i < warmup; i++)
+      benchmark.run(operations);
+
+    double sum = 0, sumSquares = 0;
+    long ticks = 0, count = 0;
+
+    for (int i = 0; i < iterations; i++) {
+      long startTicks = getTime();
+      long startTime = System.nanoTime();
+
+      long n = benchmark.run(operations);
+
+      double nsPerOp = (double)(System.nanoTime() - startTime) / n;
+      sum += nsPerOp;
+      sumSquares += nsPerOp * nsPerOp;
+
+      ticks += getTime() - startTicks;
+      count += n;
+    }
+
+    double mean = sum / iterations;
+    double deviation =
+      Math.sqrt(Math.max(sumSquares / iterations - mean * mean, 0));
+
+    System.out.println(pad(name, -40) + pad(param, 8) +
+                       pad(String.format("%.1f", mean), 14) +
+                       pad(String.format("%.1f", deviation), 12) +
+                       pad(String.format("%.1f", (double)ticks / count), 12));
+  }
+
+  private boolean isSelected(String name) {
+    if (benchmarks == null)
+      return true;
+
+    StringTokenizer st = new StringTokenizer(benchmarks, ":");
+    while (st.hasMoreTokens()) {
+      if (st.nextToken().equals(name))
+        return true;
+    }
+    return false;
+  }
+
+  private String[] getListArgument(String key, String defaultValue) {
+    StringTokenizer st =
+      new StringTokenizer(getStringArgument(key, defaultValue), ":");
+
+    String[] list = new String[st.countTokens()];
+    for (int i = 0; i < list.length; i++)
+      list[i] = st.nextToken();
+
+    return list;
+  }
+
+  /**
+   * Pad <i>s</i> with spaces to <i>width</i> characters, on the left, or on
+   * the right if <i>width</i> is negative.
+   */
+  private static String pad(String s, int width) {
+    StringBuffer buffer = new StringBuffer(s);
+    while (buffer.length() < Math.abs(width)) {
+      if (width < 0)
+        buffer.append(' ');
+      else
+        buffer.insert(0, ' ');
+    }
+    return buffer.toString();
+  }
+
+  private abstract static class Benchmark {
+    /**
+     * Perform about <i>n</i> operations.
+     *
+     * @return	the number of operations performed.
+     */
+    abstract long run(int n);
+  }
+
+  /**
+   * A lock and condition variable ping-pong between two sides, 0 and 1.
+   */
+  private static class PingPong {
+    /**
+     * Play <i>n</i> turns as <i>side</i>: wait until it is this side's turn,
+     * pass the turn to the other side, and wake it.
+     */
+    void play(int n, int side) {
+      lock.acquire();
+      for (int i = 0; i < n; i++) {
+        while (turn != side)
+          condition.sleep();
+
+        turn = 1 - side;
+        condition.wake();
+      }
+      lock.release();
+    }
+
+    private Lock lock = new Lock();
+    private Condition2 condition = new Condition2(lock);
+    private int turn = 0;
+  }
+
+  /**
+   * Hands a queue with a fixed number of waiting threads from thread to
+   * thread. The threads are never forked; only their scheduling state is
+   * used.
+   */
+  private static class QueueBenchmark extends Benchmark {
+    QueueBenchmark(String className, int numWaiters,
+                   boolean transferPriority) {
+      scheduler = (Scheduler)Lib.constructObject(className);
+      queue = scheduler.newThreadQueue(transferPriority);
+
+      Random random = new Random(numWaiters);
+
+      boolean intStatus = Machine.interrupt().disable();
+
+      holder = new KThread();
+      queue.acquire(holder);
+
+      for (int i = 0; i < numWaiters; i++) {
+        KThread thread = new KThread();
+        scheduler.setPriority(thread,
+                              random.nextInt(PriorityScheduler.priorityMaximum
+                                             + 1));
+        queue.waitForAccess(thread);
+      }
+
+      Machine.interrupt().restore(intStatus);
+    }
+
+    long run(int n) {
+      boolean intStatus = Machine.interrupt().disable();
+
+      for (int i = 0; i < n; i++) {
+        KThread next = queue.nextThread();
+        queue.waitForAccess(holder);
+        holder = next;
+      }
+
+      Machine.interrupt().restore(intStatus);
+      return n;
+    }
+
+    private Scheduler scheduler;
+    private ThreadQueue queue;
+    private KThread holder;
+  }
+
+  /**
+   * Keeps a fixed number of interrupts pending, each of which schedules
+   * another when it occurs, and ticks the clock until enough of them have
+   * occurred.
+   */
+  private class InterruptBenchmark extends Benchmark {
+    InterruptBenchmark(int numPending) {
+      this.numPending = numPending;
+      random = new Random(numPending);
+
+      handles = new Privilege.InterruptHandle[numPending];
+      for (int i = 0; i < numPending; i++) {
+        handles[i] = privilege.interrupt.newHandle("benchmark",
+                                                   new Handler(i));
+        schedule(handles[i]);
+      }
+    }
+
+    long run(int n) {
+      long start = occurred;
+      while (occurred - start < n)
+        privilege.interrupt.tick(true);
+
+      return occurred - start;
+    }
+
+    /**
+     * Cancel every pending interrupt, so none of them fire during later
+     * benchmarks.
+     */
+    void stop() {
+      for (int i = 0; i < numPending; i++)
+        handles[i].cancel();
+    }
+
+    /**
+     * Schedule the next occurrence of an interrupt, at a random time that
+     * averages one interrupt every five ticks.
+     */
+    private void schedule(Privilege.InterruptHandle handle) {
+      handle.reschedule(1 + random.nextInt(10 * numPending));
+    }
+
+    /** Counts an occurrence of one interrupt and schedules the next. */
+    private class Handler implements Runnable {
+      Handler(int slot) {
+        this.slot = slot;
+      }
+
+      public void run() {
+        occurred++;
+        schedule(handles[slot]);
+      }
+
+      private int slot;
+    }
+
+    private int numPending;
+    private Random random;
+    private Privilege.InterruptHandle[] handles;
+    private long occurred = 0;
+  }
+
+  private String benchmarks;
+  private int warmup, iterations, operations;
+
+  private long processorStartTime = 0;
+  private long processorStartInstructions = 0;
+}
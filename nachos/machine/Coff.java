@@ -59,6 +59,7 @@ public class Coff {
       int numSections = Lib.bytesToUnsignedShort(headers, 2);
       int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
       int flags = Lib.bytesToUnsignedShort(headers, 18);
+      symbolicHeaderOffset = Lib.bytesToInt(headers, 8);
       entryPoint = Lib.bytesToInt(headers, headerLength + 16);
 
       if (magic != 0x0162) {
@@ -122,6 +123,175 @@ public class Coff {
     return entryPoint;
   }
 
+  /**
+   * Read the external symbols of the executable, so that
+   * <tt>getSymbolName()</tt> and <tt>getSymbolicAddress()</tt> can name
+   * functions. Only text symbols are kept. Executables linked with
+   * <tt>-s</tt> have no symbol table, in which case addresses are described
+   * relative to the section containing them.
+   *
+   * <p>
+   * This reads the executable file, and so must be called before
+   * <tt>close()</tt>.
+   */
+  public void loadSymbols() {
+    Lib.assertTrue(file != null);
+
+    if (symbolicHeaderOffset <= 0 ||
+        symbolicHeaderOffset + symbolicHeaderLength > file.length()) {
+      Lib.debug(dbgCoff, "	no symbol table");
+      return;
+    }
+
+    byte[] hdrr = new byte[symbolicHeaderLength];
+    Lib.strictReadFile(file, symbolicHeaderOffset, hdrr, 0, hdrr.length);
+
+    if (Lib.bytesToUnsignedShort(hdrr, 0) != 0x7009) {
+      Lib.debug(dbgCoff, "	bad symbolic header magic number");
+      return;
+    }
+
+    int stringsLength = Lib.bytesToInt(hdrr, 64);
+    int stringsOffset = Lib.bytesToInt(hdrr, 68);
+    int numExternals = Lib.bytesToInt(hdrr, 88);
+    int externalsOffset = Lib.bytesToInt(hdrr, 92);
+
+    if (stringsLength < 0 || stringsOffset < 0 ||
+        (long)stringsOffset + stringsLength > file.length() ||
+        numExternals < 0 || externalsOffset < 0 ||
+        (long)externalsOffset + (long)numExternals * externalLength >
+        file.length()) {
+      Lib.debug(dbgCoff, "	bad symbol table");
+      return;
+    }
+
+    byte[] strings = new byte[stringsLength];
+    Lib.strictReadFile(file, stringsOffset, strings, 0, strings.length);
+    byte[] externals = new byte[numExternals * externalLength];
+    Lib.strictReadFile(file, externalsOffset, externals, 0, externals.length);
+
+    symbolValues = new int[numExternals];
+    symbolNames = new String[numExternals];
+    int numSymbols = 0;
+
+    for (int i = 0; i < numExternals; i++) {
+      int entry = i * externalLength;
+      int iss = Lib.bytesToInt(externals, entry + 4);
+      int value = Lib.bytesToInt(externals, entry + 8);
+      int bits = Lib.bytesToInt(externals, entry + 12);
+
+      // keep only symbols in the text section (storage class 1)
+      if (Lib.extract(bits, 6, 5) != 1 || iss < 0 || iss >= stringsLength)
+        continue;
+
+      String name = Lib.bytesToString(strings, iss, stringsLength - iss);
+
+      // insert in order of address
+      int j = numSymbols++;
+      while (j > 0 && symbolValues[j - 1] > value) {
+        symbolValues[j] = symbolValues[j - 1];
+        symbolNames[j] = symbolNames[j - 1];
+        j--;
+      }
+      symbolValues[j] = value;
+      symbolNames[j] = name;
+    }
+
+    if (numSymbols < numExternals) {
+      int[] values = new int[numSymbols];
+      String[] names = new String[numSymbols];
+      System.arraycopy(symbolValues, 0, values, 0, numSymbols);
+      System.arraycopy(symbolNames, 0, names, 0, numSymbols);
+      symbolValues = values;
+      symbolNames = names;
+    }
+
+    Lib.debug(dbgCoff, "	loaded " + numSymbols + " symbols");
+  }
+
+  /**
+   * Return the name of the function containing <i>vaddr</i>. If no symbols
+   * were loaded, return the name of the section containing it instead.
+   *
+   * @param	vaddr	the virtual address to look up.
+   * @return	the name of the enclosing function or section, or
+   *		<tt>null</tt> if there is none.
+   */
+  public String getSymbolName(int vaddr) {
+    int symbol = findSymbol(vaddr);
+    if (symbol >= 0)
+      return symbolNames[symbol];
+
+    CoffSection section = findSection(vaddr);
+    if (section != null)
+      return section.getName();
+
+    return null;
+  }
+
+  /**
+   * Describe <i>vaddr</i> as an offset from the start of the function
+   * containing it (for example <tt>main+0x1c</tt>), or from the start of its
+   * section if no symbols were loaded.
+   *
+   * @param	vaddr	the virtual address to describe.
+   * @return	a description of the address.
+   */
+  public String getSymbolicAddress(int vaddr) {
+    int symbol = findSymbol(vaddr);
+    if (symbol >= 0)
+      return symbolNames[symbol] + "+0x" +
+          Integer.toHexString(vaddr - symbolValues[symbol]);
+
+    CoffSection section = findSection(vaddr);
+    if (section != null)
+      return section.getName() + "+0x" +
+          Integer.toHexString(vaddr - section.getFirstVPN() *
+                              Processor.pageSize);
+
+    return "0x" + Lib.toHexString(vaddr);
+  }
+
+  /**
+   * Return the index of the last symbol at or below <i>vaddr</i> in the same
+   * section, or -1 if there is none.
+   */
+  private int findSymbol(int vaddr) {
+    if (symbolValues == null)
+      return -1;
+
+    int low = 0, high = symbolValues.length - 1, found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (symbolValues[mid] <= vaddr) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    if (found >= 0 && findSection(symbolValues[found]) != findSection(vaddr))
+      return -1;
+
+    return found;
+  }
+
+  /** Return the section containing <i>vaddr</i>, or <tt>null</tt>. */
+  private CoffSection findSection(int vaddr) {
+    if (sections == null)
+      return null;
+
+    int vpn = Processor.pageFromAddress(vaddr);
+    for (int s = 0; s < sections.length; s++) {
+      int firstVPN = sections[s].getFirstVPN();
+      if (vpn >= firstVPN && vpn < firstVPN + sections[s].getLength())
+        return sections[s];
+    }
+
+    return null;
+  }
+
   /**
    * Close the executable file and release any resources allocated by this
    * loader.
@@ -134,6 +304,13 @@ public class Coff {
 
   private OpenFile file;
 
+  /** File offset of the ECOFF symbolic header, or 0 if there is none. */
+  private int symbolicHeaderOffset;
+  /** Addresses of the text symbols, in increasing order. */
+  private int[] symbolValues;
+  /** Names of the text symbols, parallel to <tt>symbolValues</tt>. */
+  private String[] symbolNames;
+
   /** The virtual address of the first instruction of the program. */
   protected int entryPoint;
   /** The sections in this COFF executable. */
@@ -141,6 +318,8 @@ public class Coff {
 
   private static final int headerLength = 20;
   private static final int aoutHeaderLength = 28;
+  private static final int symbolicHeaderLength = 96;
+  private static final int externalLength = 16;
 
   private static final char dbgCoff = 'c';
 }
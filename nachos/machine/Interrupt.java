@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,8 @@ public final class Interrupt {
     privilege.interrupt = new InterruptPrivilege();
 
     enabled = false;
-    pending = new TreeSet<PendingInterrupt>();
+    pending = new PendingInterrupt[16];
+    numPending = 0;
   }
 
   /**
@@ -110,16 +109,86 @@ public final class Interrupt {
    */
   public boolean disabled() { return !enabled; }
 
+  /**
+   * Advance the simulated time over a stretch in which the processor would
+   * only idle. Must be called with interrupts disabled, by a kernel that has
+   * nothing to run until an interrupt occurs, and which will re-enable
+   * interrupts next.
+   *
+   * <p>
+   * An idle kernel repeatedly enables interrupts, each time advancing the
+   * simulated time by <tt>Stats.KernelTick</tt>. This method charges, in
+   * one step, every such tick that would pass before the tick on which the
+   * next interrupt becomes due. The simulated time at which that interrupt
+   * occurs is exactly the same, but without the idle loop in between.
+   */
+  public void idle() {
+    Lib.assertTrue(disabled());
+
+    if (numPending == 0)
+      return;
+
+    Stats stats = privilege.stats;
+    long gap = pending[0].time - stats.totalTicks;
+    if (gap <= Stats.KernelTick)
+      return;
+
+    long skipped = (gap - 1) / Stats.KernelTick * Stats.KernelTick;
+
+    Lib.debug(dbgInt, "Idling for " + skipped + " ticks");
+
+    stats.kernelTicks += skipped;
+    stats.totalTicks += skipped;
+  }
+
   private void schedule(long when, String type, Runnable handler) {
     Lib.assertTrue(when > 0);
 
-    long time = privilege.stats.totalTicks + when;
-    PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+    PendingInterrupt toOccur = freeList;
+    if (toOccur != null)
+      freeList = toOccur.nextFree;
+    else
+      toOccur = new PendingInterrupt();
 
-    Lib.debug(dbgInt, "Scheduling the " + type +
-                          " interrupt handler at time = " + time);
+    toOccur.type = type;
+    toOccur.handler = handler;
 
-    pending.add(toOccur);
+    reschedule(toOccur, when);
+  }
+
+  private PendingInterrupt newHandle(String type, Runnable handler) {
+    PendingInterrupt handle = new PendingInterrupt();
+
+    handle.type = type;
+    handle.handler = handler;
+    handle.owned = true;
+
+    return handle;
+  }
+
+  private void reschedule(PendingInterrupt toOccur, long when) {
+    Lib.assertTrue(when > 0);
+
+    if (toOccur.index >= 0)
+      remove(toOccur.index);
+
+    toOccur.time = privilege.stats.totalTicks + when;
+    toOccur.id = numPendingInterruptsCreated++;
+
+    Lib.debug(dbgInt, "Scheduling the " + toOccur.type +
+                          " interrupt handler at time = " + toOccur.time);
+
+    add(toOccur);
+  }
+
+  private void cancel(PendingInterrupt toOccur) {
+    if (toOccur.index < 0)
+      return;
+
+    Lib.debug(dbgInt, "Cancelling the " + toOccur.type +
+                          " interrupt handler at time = " + toOccur.time);
+
+    remove(toOccur.index);
   }
 
   private void tick(boolean inKernelMode) {
@@ -149,52 +218,157 @@ public final class Interrupt {
     if (Lib.test(dbgInt))
       print();
 
-    if (pending.isEmpty())
-      return;
-
-    if (((PendingInterrupt)pending.first()).time > time)
+    if (numPending == 0 || pending[0].time > time)
       return;
 
     Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-    while (!pending.isEmpty() &&
-           ((PendingInterrupt)pending.first()).time <= time) {
-      PendingInterrupt next = (PendingInterrupt)pending.first();
-      pending.remove(next);
+    while (numPending > 0 && pending[0].time <= time) {
+      PendingInterrupt next = removeFirst();
 
       Lib.assertTrue(next.time <= time);
 
+      String type = next.type;
+      Runnable handler = next.handler;
+
+      // recycle the entry before running the handler, which may well
+      // schedule the next interrupt of the same kind; handles belong to
+      // their device and are never recycled
+      if (!next.owned) {
+        next.type = null;
+        next.handler = null;
+        next.nextFree = freeList;
+        freeList = next;
+      }
+
       if (privilege.processor != null)
         privilege.processor.flushPipe();
 
-      Lib.debug(dbgInt, "  " + next.type);
+      Lib.debug(dbgInt, "  " + type);
 
-      next.handler.run();
+      handler.run();
     }
 
     Lib.debug(dbgInt, "  (end of list)");
   }
 
+  private long nextDueTime() {
+    if (numPending == 0)
+      return Long.MAX_VALUE;
+
+    return pending[0].time;
+  }
+
+  /**
+   * Add an interrupt to the pending heap.
+   */
+  private void add(PendingInterrupt toOccur) {
+    if (numPending == pending.length)
+      pending = Arrays.copyOf(pending, numPending * 2);
+
+    siftUp(numPending++, toOccur);
+  }
+
+  /**
+   * Remove and return the earliest pending interrupt.
+   */
+  private PendingInterrupt removeFirst() {
+    PendingInterrupt first = pending[0];
+    remove(0);
+    return first;
+  }
+
+  /**
+   * Remove the pending interrupt in heap slot <i>i</i>.
+   */
+  private void remove(int i) {
+    PendingInterrupt removed = pending[i];
+
+    PendingInterrupt last = pending[--numPending];
+    pending[numPending] = null;
+    if (i < numPending) {
+      siftDown(i, last);
+      if (pending[i] == last)
+        siftUp(i, last);
+    }
+
+    removed.index = -1;
+  }
+
+  /**
+   * Place <i>toOccur</i> at heap slot <i>i</i> or above, moving later
+   * interrupts down to make room.
+   */
+  private void siftUp(int i, PendingInterrupt toOccur) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (!toOccur.before(pending[parent]))
+        break;
+
+      pending[i] = pending[parent];
+      pending[i].index = i;
+      i = parent;
+    }
+
+    pending[i] = toOccur;
+    toOccur.index = i;
+  }
+
+  /**
+   * Place <i>toOccur</i> at heap slot <i>i</i> or below, moving earlier
+   * interrupts up to make room.
+   */
+  private void siftDown(int i, PendingInterrupt toOccur) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= numPending)
+        break;
+      if (child + 1 < numPending && pending[child + 1].before(pending[child]))
+        child++;
+      if (!pending[child].before(toOccur))
+        break;
+
+      pending[i] = pending[child];
+      pending[i].index = i;
+      i = child;
+    }
+
+    pending[i] = toOccur;
+    toOccur.index = i;
+  }
+
   private void print() {
     System.out.println("Time: " + privilege.stats.totalTicks + ", interrupts " +
                        (enabled ? "on" : "off"));
     System.out.println("Pending interrupts:");
 
-    for (Iterator i = pending.iterator(); i.hasNext();) {
-      PendingInterrupt toOccur = (PendingInterrupt)i.next();
-      System.out.println("  " + toOccur.type + ", scheduled at " +
-                         toOccur.time);
+    PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+    Arrays.sort(sorted);
+
+    for (int i = 0; i < sorted.length; i++) {
+      System.out.println("  " + sorted[i].type + ", scheduled at " +
+                         sorted[i].time);
     }
 
     System.out.println("  (end of list)");
   }
 
-  private class PendingInterrupt implements Comparable {
-    PendingInterrupt(long time, String type, Runnable handler) {
-      this.time = time;
-      this.type = type;
-      this.handler = handler;
-      this.id = numPendingInterruptsCreated++;
+  private class PendingInterrupt
+      implements Comparable, Privilege.InterruptHandle {
+    public void reschedule(long when) {
+      Interrupt.this.reschedule(this, when);
+    }
+
+    public void cancel() { Interrupt.this.cancel(this); }
+
+    public boolean isPending() { return index >= 0; }
+
+    /**
+     * Test whether this interrupt is due before <i>toOccur</i>. Interrupts
+     * due at the same time occur in the order they were scheduled.
+     */
+    boolean before(PendingInterrupt toOccur) {
+      return time < toOccur.time || (time == toOccur.time && id < toOccur.id);
     }
 
     public int compareTo(Object o) {
@@ -218,6 +392,12 @@ public final class Interrupt {
     Runnable handler;
 
     private long id;
+    /** This interrupt's slot in the pending heap, or -1 if not pending. */
+    int index = -1;
+    /** <tt>true</tt> if this is a handle, owned by a device. */
+    boolean owned = false;
+    /** The next entry on the free list. */
+    PendingInterrupt nextFree;
   }
 
   private long numPendingInterruptsCreated = 0;
@@ -225,7 +405,14 @@ public final class Interrupt {
   private Privilege privilege;
 
   private boolean enabled;
-  private TreeSet<PendingInterrupt> pending;
+  /**
+   * The pending interrupts, as a binary min-heap ordered by time and then
+   * by the order in which they were scheduled.
+   */
+  private PendingInterrupt[] pending;
+  private int numPending;
+  /** Entries for interrupts that have already occurred, for reuse. */
+  private PendingInterrupt freeList = null;
 
   private static final char dbgInt = 'i';
 
@@ -237,5 +424,12 @@ public final class Interrupt {
     public void tick(boolean inKernelMode) {
       Interrupt.this.tick(inKernelMode);
     }
+
+    public Privilege.InterruptHandle newHandle(String type,
+                                               Runnable handler) {
+      return Interrupt.this.newHandle(type, handler);
+    }
+
+    public long nextDueTime() { return Interrupt.this.nextDueTime(); }
   }
 }
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,11 +47,32 @@ public final class Processor {
       registers[i] = 0;
 
     mainMemory = new byte[pageSize * numPhysPages];
+    decodeCache = new Decoded[numPhysPages][];
+
+    privilege.stats.opcodeNames =
+        Mips.opcodeNames.toArray(new String[0]);
+    privilege.stats.numOpcodes = new long[Mips.opcodeNames.size()];
+
+    runAhead = Config.getBoolean("Processor.runAhead", false);
 
     if (usingTLB) {
+      if (Config.getBoolean("Processor.variableTLB", false)) {
+        tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+        Lib.assertTrue(tlbSize > 0);
+      }
+
       translations = new TranslationEntry[tlbSize];
       for (int i = 0; i < tlbSize; i++)
         translations[i] = new TranslationEntry();
+
+      int numBuckets = 1;
+      while (numBuckets < tlbSize * 2)
+        numBuckets *= 2;
+
+      tlbBuckets = new int[numBuckets];
+      for (int i = 0; i < numBuckets; i++)
+        tlbBuckets[i] = -1;
+      tlbChain = new int[tlbSize];
     } else {
       translations = null;
     }
@@ -89,9 +112,18 @@ public final class Processor {
 
     Instruction inst = new Instruction();
 
+    // running ahead would hide the per-instruction trace and per-tick
+    // interrupt checks, so it stays off while either is being debugged
+    boolean useRunAhead = runAhead && !Lib.test(dbgProcessor) &&
+                          !Lib.test(dbgDisassemble) &&
+                          !Lib.test(dbgFullDisassemble) && !Lib.test('i');
+
     while (true) {
       try {
-        inst.run();
+        if (useRunAhead)
+          runAhead(inst);
+        else
+          inst.run();
       } catch (MipsException e) {
         e.handle();
       }
@@ -100,6 +132,78 @@ public final class Processor {
     }
   }
 
+  /**
+   * Execute instructions one at a time, exactly as <tt>Instruction.run()</tt>
+   * does, up to the instruction after which the next interrupt is due. The
+   * caller charges the last instruction with <tt>tick(false)</tt>, and the
+   * rest are charged here in one step, including when the run ends with an
+   * exception.
+   *
+   * <p>
+   * The PC is translated once per page rather than on every fetch. Nothing
+   * but the kernel changes a translation, and the kernel only runs between
+   * runs, so the page stays valid until the PC leaves it.
+   *
+   * @param	inst	the instruction state to execute with.
+   * @exception	MipsException	if an instruction caused an exception.
+   */
+  private void runAhead(Instruction inst) throws MipsException {
+    int length = instructionsUntilDue(Integer.MAX_VALUE);
+
+    int vpn = -1, base = 0;
+    int executed = 0;
+    try {
+      do {
+        executed++;
+
+        int vaddr = registers[regPC];
+        if (pageFromAddress(vaddr) != vpn || (vaddr & 3) != 0) {
+          base = translate(vaddr, 4, false) - offsetFromAddress(vaddr);
+          vpn = pageFromAddress(vaddr);
+        }
+
+        // instruction words are re-read every time, so code that was
+        // written since the last pass is decoded again by predecode()
+        int paddr = base + offsetFromAddress(vaddr);
+        int value = Lib.bytesToInt(mainMemory, paddr);
+
+        inst.run(value, predecode(paddr, value));
+      } while (executed < length);
+    } finally {
+      chargeUserTicks(executed - 1);
+    }
+  }
+
+  /**
+   * Return how many instructions can be executed, at most <i>limit</i>,
+   * before the next pending interrupt is due. The interrupt is delivered by
+   * the <tt>tick(false)</tt> following the last of them, just as it would be
+   * if every instruction were followed by a tick.
+   *
+   * @param	limit	the largest number of instructions to return.
+   * @return	the number of instructions to execute, always at least 1.
+   */
+  private int instructionsUntilDue(int limit) {
+    long budget = privilege.interrupt.nextDueTime() -
+                  privilege.stats.totalTicks;
+
+    if (budget >= (long)limit * Stats.UserTick)
+      return limit;
+
+    return (int)Math.max(1, (budget + Stats.UserTick - 1) / Stats.UserTick);
+  }
+
+  /**
+   * Charge <i>count</i> instructions' worth of user ticks at once, without
+   * checking for pending interrupts.
+   *
+   * @param	count	the number of instructions executed.
+   */
+  private void chargeUserTicks(int count) {
+    privilege.stats.userTicks += (long)count * Stats.UserTick;
+    privilege.stats.totalTicks += (long)count * Stats.UserTick;
+  }
+
   /**
    * Read and return the contents of the specified CPU register.
    *
@@ -170,6 +274,16 @@ public final class Processor {
     this.translations = pageTable;
   }
 
+  /**
+   * Set the execution profile that counts the instructions retired from now
+   * on, or <tt>null</tt> to stop counting.
+   *
+   * @param	profile	the profile to update.
+   */
+  public void setProfile(Profile profile) {
+    this.profile = profile;
+  }
+
   /**
    * Return the number of entries in this processor's TLB.
    *
@@ -208,7 +322,87 @@ public final class Processor {
     Lib.assertTrue(usingTLB);
     Lib.assertTrue(number >= 0 && number < tlbSize);
 
+    unindexTLBEntry(number);
     translations[number] = new TranslationEntry(entry);
+    indexTLBEntry(number);
+
+    lastTranslation = null;
+  }
+
+  /**
+   * Add TLB entry <i>number</i> to the vpn index, if it is valid. Each hash
+   * chain is kept in increasing order of TLB index, so that a lookup finds
+   * the same entry a linear search of the TLB would.
+   *
+   * @param	number	the index into the TLB.
+   */
+  private void indexTLBEntry(int number) {
+    if (!translations[number].valid)
+      return;
+
+    int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+    int prev = -1, next = tlbBuckets[bucket];
+    while (next != -1 && next < number) {
+      prev = next;
+      next = tlbChain[next];
+    }
+
+    tlbChain[number] = next;
+    if (prev == -1)
+      tlbBuckets[bucket] = number;
+    else
+      tlbChain[prev] = number;
+  }
+
+  /**
+   * Remove TLB entry <i>number</i> from the vpn index, if it is valid.
+   *
+   * @param	number	the index into the TLB.
+   */
+  private void unindexTLBEntry(int number) {
+    if (!translations[number].valid)
+      return;
+
+    int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+    if (tlbBuckets[bucket] == number) {
+      tlbBuckets[bucket] = tlbChain[number];
+      return;
+    }
+
+    for (int i = tlbBuckets[bucket]; i != -1; i = tlbChain[i]) {
+      if (tlbChain[i] == number) {
+        tlbChain[i] = tlbChain[number];
+        return;
+      }
+    }
+
+    Lib.assertNotReached("TLB entry missing from index");
+  }
+
+  /**
+   * Find the valid TLB entry for virtual page <i>vpn</i>, or return
+   * <tt>null</tt> if there is none. The entry found by the previous lookup
+   * is checked first, since consecutive references (and in particular
+   * consecutive instruction fetches) usually fall on the same page.
+   *
+   * @param	vpn	the virtual page to look up.
+   * @return	the matching TLB entry, or <tt>null</tt> on a TLB miss.
+   */
+  private TranslationEntry lookupTLB(int vpn) {
+    if (lastTranslation != null && lastTranslation.vpn == vpn)
+      return lastTranslation;
+
+    int bucket = vpn & (tlbBuckets.length - 1);
+    for (int i = tlbBuckets[bucket]; i != -1; i = tlbChain[i]) {
+      if (translations[i].vpn == vpn) {
+        lastTranslation = translations[i];
+        return lastTranslation;
+      }
+    }
+
+    return null;
   }
 
   /**
@@ -288,7 +482,7 @@ public final class Processor {
     // check alignment
     if ((vaddr & (size - 1)) != 0) {
       Lib.debug(dbgProcessor, "\t\talignment error");
-      throw new MipsException(exceptionAddressError, vaddr);
+      throw mipsException(exceptionAddressError, vaddr);
     }
 
     // calculate virtual page number and offset from the virtual address
@@ -303,37 +497,32 @@ public final class Processor {
           translations[vpn] == null || !translations[vpn].valid) {
         privilege.stats.numPageFaults++;
         Lib.debug(dbgProcessor, "\t\tpage fault");
-        throw new MipsException(exceptionPageFault, vaddr);
+        throw mipsException(exceptionPageFault, vaddr);
       }
 
       entry = translations[vpn];
     }
-    // else, look through all TLB entries for matching vpn
+    // else, look up the matching TLB entry by vpn
     else {
-      for (int i = 0; i < tlbSize; i++) {
-        if (translations[i].valid && translations[i].vpn == vpn) {
-          entry = translations[i];
-          break;
-        }
-      }
+      entry = lookupTLB(vpn);
       if (entry == null) {
         privilege.stats.numTLBMisses++;
         Lib.debug(dbgProcessor, "\t\tTLB miss");
-        throw new MipsException(exceptionTLBMiss, vaddr);
+        throw mipsException(exceptionTLBMiss, vaddr);
       }
     }
 
     // check if trying to write a read-only page
     if (entry.readOnly && writing) {
       Lib.debug(dbgProcessor, "\t\tread-only exception");
-      throw new MipsException(exceptionReadOnly, vaddr);
+      throw mipsException(exceptionReadOnly, vaddr);
     }
 
     // check if physical page number is out of range
     int ppn = entry.ppn;
     if (ppn < 0 || ppn >= numPhysPages) {
       Lib.debug(dbgProcessor, "\t\tbad ppn");
-      throw new MipsException(exceptionBusError, vaddr);
+      throw mipsException(exceptionBusError, vaddr);
     }
 
     // set used and dirty bits as appropriate
@@ -393,6 +582,36 @@ public final class Processor {
     Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
   }
 
+  /**
+   * Return the predecoded form of the instruction word <i>value</i>, which
+   * was fetched from physical address <i>paddr</i>. The cache entry is
+   * tagged with the word it was decoded from, so a stale entry left behind
+   * by any write to physical memory (through <tt>writeMem()</tt>, or
+   * through <tt>getMemory()</tt> by the kernel) is simply decoded again.
+   *
+   * @param	paddr	the physical address of the instruction.
+   * @param	value	the instruction word read from <i>paddr</i>.
+   * @return	the predecoded instruction.
+   */
+  private Decoded predecode(int paddr, int value) {
+    Decoded[] page = decodeCache[paddr / pageSize];
+    if (page == null) {
+      page = new Decoded[pageSize / 4];
+      decodeCache[paddr / pageSize] = page;
+    }
+
+    Decoded decoded = page[(paddr % pageSize) / 4];
+    if (decoded == null) {
+      decoded = new Decoded();
+      page[(paddr % pageSize) / 4] = decoded;
+    } else if (decoded.value == value) {
+      return decoded;
+    }
+
+    decoded.decode(value);
+    return decoded;
+  }
+
   /**
    * Complete the in progress delayed load and scheduled a new one.
    *
@@ -413,6 +632,9 @@ public final class Processor {
       registers[loadTarget] = savedBits | newBits;
     }
 
+    if (nextLoadMask != 0)
+      privilege.stats.numDelayedLoads++;
+
     // schedule next load
     loadTarget = nextLoadTarget;
     loadValue = nextLoadValue;
@@ -520,6 +742,18 @@ public final class Processor {
    * depending on whether there is a TLB.
    */
   private TranslationEntry[] translations;
+  /**
+   * Heads of the hash chains indexing the valid TLB entries by vpn. The
+   * number of buckets is a power of two.
+   */
+  private int[] tlbBuckets;
+  /** The next TLB index in each entry's hash chain, or -1. */
+  private int[] tlbChain;
+  /**
+   * The TLB entry found by the most recent lookup, or <tt>null</tt> if the
+   * TLB has been written since.
+   */
+  private TranslationEntry lastTranslation;
 
   /** Size of a page, in bytes. */
   public static final int pageSize = 0x400;
@@ -529,6 +763,20 @@ public final class Processor {
   private int numPhysPages;
   /** Main memory for user programs. */
   private byte[] mainMemory;
+  /**
+   * Predecoded instructions, indexed by physical page number and then by
+   * word within the page. A page's array is allocated the first time an
+   * instruction is fetched from it.
+   */
+  private Decoded[][] decodeCache;
+
+  /** The profile of the running program, or <tt>null</tt>. */
+  private Profile profile = null;
+  /**
+   * <tt>true</tt> if instructions should be executed in runs up to the next
+   * interrupt, rather than checking for interrupts after each one.
+   */
+  private boolean runAhead;
 
   /** The kernel exception handler, called on every user exception. */
   private Runnable exceptionHandler = null;
@@ -541,21 +789,57 @@ public final class Processor {
     public void flushPipe() { finishLoad(); }
   }
 
-  private class MipsException extends Exception {
-    public MipsException(int cause) {
-      Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+  /**
+   * Return the processor's exception object, set up to report <i>cause</i>.
+   * The same object is thrown for every user exception, so raising one does
+   * not allocate anything or fill in a stack trace.
+   *
+   * @param	cause	the exception cause.
+   * @return	the exception to throw.
+   */
+  private MipsException mipsException(int cause) {
+    return userException.set(cause, false, 0);
+  }
 
-      this.cause = cause;
+  /**
+   * Return the processor's exception object, set up to report <i>cause</i>
+   * with a bad virtual address.
+   *
+   * @param	cause		the exception cause.
+   * @param	badVAddr	the offending virtual address.
+   * @return	the exception to throw.
+   */
+  private MipsException mipsException(int cause, int badVAddr) {
+    return userException.set(cause, true, badVAddr);
+  }
+
+  /** The exception thrown for every user exception. */
+  private MipsException userException = new MipsException();
+
+  /**
+   * A user exception, thrown out of the instruction that caused it and
+   * handled in <tt>run()</tt>. A single instance is reused: <tt>handle()</tt>
+   * copies its state into the CPU registers before calling the exception
+   * handler, so the handler is free to cause the next exception.
+   */
+  private class MipsException extends Exception {
+    public MipsException() {
+      super(null, null, false, false);
     }
 
-    public MipsException(int cause, int badVAddr) {
-      this(cause);
+    public MipsException set(int cause, boolean hasBadVAddr, int badVAddr) {
+      Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-      hasBadVAddr = true;
+      this.cause = cause;
+      this.hasBadVAddr = hasBadVAddr;
       this.badVAddr = badVAddr;
+
+      return this;
     }
 
     public void handle() {
+      privilege.stats.numExceptions[cause]++;
+
       writeRegister(regCause, cause);
 
       if (hasBadVAddr)
@@ -581,11 +865,30 @@ public final class Processor {
 
   private class Instruction {
     public void run() throws MipsException {
+      int pc = registers[regPC];
+
       // hopefully this looks familiar to 152 students?
       fetch();
       decode();
       execute();
       writeBack();
+
+      if (profile != null)
+        profile.count(pc);
+    }
+
+    public void run(int value, Decoded decoded) throws MipsException {
+      int pc = registers[regPC];
+
+      this.value = value;
+      this.decoded = decoded;
+
+      decode();
+      execute();
+      writeBack();
+
+      if (profile != null)
+        profile.count(pc);
     }
 
     private boolean test(int flag) { return Lib.test(flag, flags); }
@@ -595,63 +898,44 @@ public final class Processor {
           Lib.test(dbgFullDisassemble))
         System.out.print("PC=0x" + Lib.toHexString(registers[regPC]) + "\t");
 
-      value = readMem(registers[regPC], 4);
-    }
+      if (Lib.test(dbgProcessor))
+        System.out.println("\treadMem vaddr=0x" +
+                           Lib.toHexString(registers[regPC]) + ", size=4");
 
-    private void decode() {
-      op = Lib.extract(value, 26, 6);
-      rs = Lib.extract(value, 21, 5);
-      rt = Lib.extract(value, 16, 5);
-      rd = Lib.extract(value, 11, 5);
-      sh = Lib.extract(value, 6, 5);
-      func = Lib.extract(value, 0, 6);
-      target = Lib.extract(value, 0, 26);
-      imm = Lib.extend(value, 0, 16);
+      int paddr = translate(registers[regPC], 4, false);
+      value = Lib.bytesToInt(mainMemory, paddr);
 
-      Mips info;
-      switch (op) {
-      case 0:
-        info = Mips.specialtable[func];
-        break;
-      case 1:
-        info = Mips.regimmtable[rt];
-        break;
-      default:
-        info = Mips.optable[op];
-        break;
-      }
+      if (Lib.test(dbgProcessor))
+        System.out.println("\t\tvalue read=0x" + Lib.toHexString(value, 8));
 
-      operation = info.operation;
-      name = info.name;
-      format = info.format;
-      flags = info.flags;
+      decoded = predecode(paddr, value);
+    }
+
+    private void decode() {
+      op = decoded.op;
+      rs = decoded.rs;
+      rt = decoded.rt;
+      rd = decoded.rd;
+      sh = decoded.sh;
+      func = decoded.func;
+      target = decoded.target;
+      imm = decoded.imm;
+
+      operation = decoded.info.operation;
+      name = decoded.info.name;
+      format = decoded.info.format;
+      flags = decoded.info.flags;
 
       mask = 0xFFFFFFFF;
       branch = true;
 
-      // get memory access size
-      if (test(Mips.SIZEB))
-        size = 1;
-      else if (test(Mips.SIZEH))
-        size = 2;
-      else if (test(Mips.SIZEW))
-        size = 4;
-      else
-        size = 0;
+      // get memory access size and dstReg
+      size = decoded.size;
+      dstReg = decoded.dstReg;
 
       // get nextPC
       nextPC = registers[regNextPC] + 4;
 
-      // get dstReg
-      if (test(Mips.DSTRA))
-        dstReg = regRA;
-      else if (format == Mips.IFMT)
-        dstReg = rt;
-      else if (format == Mips.RFMT)
-        dstReg = rd;
-      else
-        dstReg = -1;
-
       // get jtarget
       if (format == Mips.RFMT)
         jtarget = registers[rs];
@@ -829,7 +1113,7 @@ public final class Processor {
           if (registers[regLo] * src2 + registers[regHi] != src1)
             throw new ArithmeticException();
         } catch (ArithmeticException e) {
-          throw new MipsException(exceptionOverflow);
+          throw mipsException(exceptionOverflow);
         }
         break;
 
@@ -899,7 +1183,7 @@ public final class Processor {
         break;
 
       case Mips.SYSCALL:
-        throw new MipsException(exceptionSyscall);
+        throw mipsException(exceptionSyscall);
 
       case Mips.LOAD:
         value = readMem(addr, size);
@@ -969,7 +1253,7 @@ public final class Processor {
         System.err.println("Warning: encountered unimplemented inst");
 
       case Mips.INVALID:
-        throw new MipsException(exceptionIllegalInstruction);
+        throw mipsException(exceptionIllegalInstruction);
 
       default:
         Lib.assertNotReached();
@@ -979,7 +1263,7 @@ public final class Processor {
     private void writeBack() throws MipsException {
       // if instruction is signed, but carry bit !+ sign bit, throw
       if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-        throw new MipsException(exceptionOverflow);
+        throw mipsException(exceptionOverflow);
 
       if (test(Mips.DELAYEDLOAD))
         delayedLoad(dstReg, (int)dst, mask);
@@ -1000,18 +1284,31 @@ public final class Processor {
         }
       }
 
-      if (test(Mips.BRANCH) && branch) {
-        nextPC = jtarget;
+      if (test(Mips.BRANCH)) {
+        if (operation == Mips.JUMP) {
+          privilege.stats.numJumps++;
+        } else {
+          privilege.stats.numBranches++;
+          if (branch)
+            privilege.stats.numBranchesTaken++;
+        }
+
+        if (branch)
+          nextPC = jtarget;
       }
 
       advancePC(nextPC);
 
+      privilege.stats.numInstructions++;
+      privilege.stats.numOpcodes[decoded.info.opcode]++;
+
       if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
           Lib.test(dbgFullDisassemble))
         System.out.print("\n");
     }
 
     // state used to execute a single instruction
+    Decoded decoded;
     int value, op, rs, rt, rd, sh, func, target, imm;
     int operation, format, flags;
     String name;
@@ -1023,12 +1320,72 @@ public final class Processor {
     boolean branch;
   }
 
+  /**
+   * The fields of an instruction word that do not depend on the register
+   * file, extracted once and kept in the processor's decode cache.
+   */
+  private static class Decoded {
+    void decode(int value) {
+      this.value = value;
+
+      op = Lib.extract(value, 26, 6);
+      rs = Lib.extract(value, 21, 5);
+      rt = Lib.extract(value, 16, 5);
+      rd = Lib.extract(value, 11, 5);
+      sh = Lib.extract(value, 6, 5);
+      func = Lib.extract(value, 0, 6);
+      target = Lib.extract(value, 0, 26);
+      imm = Lib.extend(value, 0, 16);
+
+      switch (op) {
+      case 0:
+        info = Mips.specialtable[func];
+        break;
+      case 1:
+        info = Mips.regimmtable[rt];
+        break;
+      default:
+        info = Mips.optable[op];
+        break;
+      }
+
+      // get memory access size
+      if (Lib.test(Mips.SIZEB, info.flags))
+        size = 1;
+      else if (Lib.test(Mips.SIZEH, info.flags))
+        size = 2;
+      else if (Lib.test(Mips.SIZEW, info.flags))
+        size = 4;
+      else
+        size = 0;
+
+      // get dstReg
+      if (Lib.test(Mips.DSTRA, info.flags))
+        dstReg = regRA;
+      else if (info.format == Mips.IFMT)
+        dstReg = rt;
+      else if (info.format == Mips.RFMT)
+        dstReg = rd;
+      else
+        dstReg = -1;
+    }
+
+    /** The instruction word these fields were extracted from. */
+    int value;
+    int op, rs, rt, rd, sh, func, target, imm;
+    int size, dstReg;
+    Mips info;
+  }
+
   private static class Mips {
     Mips() {}
 
     Mips(int operation, String name) {
       this.operation = operation;
       this.name = name;
+
+      opcode = opcodeNames.size();
+      opcodeNames.add(name.substring(0, name.indexOf(' ')));
     }
 
     Mips(int operation, String name, int format, int flags) {
@@ -1041,6 +1398,12 @@ public final class Processor {
     String name = "invalid ";
     int format;
     int flags;
+    /** This opcode's index in <tt>Stats.numOpcodes</tt>. */
+    int opcode = 0;
+
+    /** The mnemonics of all valid opcodes, after "invalid". */
+    static final ArrayList<String> opcodeNames = new ArrayList<String>();
+    static { opcodeNames.add("invalid"); }
 
     // operation types
     static final int INVALID = 0, UNIMPL = 1, ADD = 2, SUB = 3, MULT = 4,
@@ -0,0 +1,160 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * An execution profile of a user program: the number of instructions retired
+ * at each PC. A kernel attaches a profile to the processor with
+ * <tt>Processor.setProfile()</tt> whenever the program it belongs to is
+ * running, and prints the report with <tt>print()</tt> when it is done.
+ */
+public final class Profile {
+  /**
+   * Allocate a new, empty profile.
+   *
+   * @param	name	the name of the profiled program, used in the report.
+   */
+  public Profile(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Count one instruction retired at <i>pc</i>.
+   *
+   * @param	pc	the address of the instruction.
+   */
+  void count(int pc) {
+    int vpn = Processor.pageFromAddress(pc);
+
+    if (vpn != lastVPN) {
+      lastPage = pages.get(vpn);
+      if (lastPage == null) {
+        lastPage = new long[Processor.pageSize / 4];
+        pages.put(vpn, lastPage);
+      }
+      lastVPN = vpn;
+    }
+
+    lastPage[Processor.offsetFromAddress(pc) / 4]++;
+    totalCount++;
+  }
+
+  /**
+   * Return the number of instructions retired at <i>pc</i>.
+   *
+   * @param	pc	the address of the instruction.
+   * @return	the number of times it was executed.
+   */
+  public long getCount(int pc) {
+    long[] page = pages.get(Processor.pageFromAddress(pc));
+    if (page == null)
+      return 0;
+
+    return page[Processor.offsetFromAddress(pc) / 4];
+  }
+
+  /**
+   * Return the total number of instructions retired.
+   *
+   * @return	the number of instructions counted by this profile.
+   */
+  public long getTotalCount() { return totalCount; }
+
+  /**
+   * Print a hot-spot report: the functions that retired the most
+   * instructions, followed by the hottest individual instructions.
+   * Addresses are named using the symbols in <i>coff</i> (see
+   * <tt>Coff.loadSymbols()</tt>), falling back to section and offset.
+   *
+   * @param	coff	the executable the program was loaded from.
+   * @param	limit	the number of lines to print in each table.
+   */
+  public void print(Coff coff, int limit) {
+    ArrayList<Entry> pcs = new ArrayList<Entry>();
+    HashMap<String, Entry> functions = new HashMap<String, Entry>();
+
+    for (Iterator<Integer> i = pages.keySet().iterator(); i.hasNext();) {
+      int vpn = i.next();
+      long[] page = pages.get(vpn);
+
+      for (int j = 0; j < page.length; j++) {
+        if (page[j] == 0)
+          continue;
+
+        int pc = Processor.makeAddress(vpn, j * 4);
+        pcs.add(new Entry(coff.getSymbolicAddress(pc), pc, page[j]));
+
+        String function = coff.getSymbolName(pc);
+        if (function == null)
+          function = "?";
+
+        Entry entry = functions.get(function);
+        if (entry == null) {
+          entry = new Entry(function, pc, 0);
+          functions.put(function, entry);
+        }
+        entry.pc = Math.min(entry.pc, pc);
+        entry.count += page[j];
+      }
+    }
+
+    System.out.println("Profile of " + name + ": " + totalCount +
+                       " instructions");
+
+    ArrayList<Entry> byFunction = new ArrayList<Entry>(functions.values());
+    print("function", byFunction, limit);
+    print("instruction", pcs, limit);
+  }
+
+  private void print(String kind, ArrayList<Entry> entries, int limit) {
+    Collections.sort(entries, new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+          if (a.count != b.count)
+            return (a.count > b.count) ? -1 : 1;
+          return Integer.compare(a.pc, b.pc);
+        }
+      });
+
+    System.out.println("  hottest by " + kind + ":");
+    for (int i = 0; i < entries.size() && i < limit; i++) {
+      Entry entry = entries.get(i);
+      System.out.println("    " + pad(entry.count, 12) + "  " +
+                         pad(entry.count * 100 / Math.max(totalCount, 1), 3) +
+                         "%  0x" + Lib.toHexString(entry.pc) + "  " +
+                         entry.name);
+    }
+  }
+
+  private static String pad(long value, int width) {
+    String s = Long.toString(value);
+    while (s.length() < width)
+      s = " " + s;
+    return s;
+  }
+
+  private static class Entry {
+    Entry(String name, int pc, long count) {
+      this.name = name;
+      this.pc = pc;
+      this.count = count;
+    }
+
+    String name;
+    int pc;
+    long count;
+  }
+
+  private String name;
+  private long totalCount = 0;
+
+  /** Instruction counts, by virtual page number and then by word. */
+  private HashMap<Integer, long[]> pages = new HashMap<Integer, long[]>();
+  private int lastVPN = -1;
+  private long[] lastPage = null;
+}
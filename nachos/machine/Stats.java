@@ -27,6 +27,78 @@ public final class Stats {
                        ", TLB misses " + numTLBMisses);
     System.out.println("Network I/O: received " + numPacketsReceived +
                        ", sent " + numPacketsSent);
+
+    if (numInstructions > 0) {
+      System.out.println("Instructions: retired " + numInstructions +
+                         ", delayed loads " + numDelayedLoads);
+      System.out.println("Branches: conditional " + numBranches +
+                         ", taken " + numBranchesTaken + ", jumps " +
+                         numJumps);
+      printExceptions();
+      printOpcodes();
+    }
+  }
+
+  private void printExceptions() {
+    String line = "Exceptions:";
+    for (int i = 0; i < numExceptions.length; i++) {
+      line = printWrapped(line, " " + Processor.exceptionNames[i].trim() +
+                                " " + numExceptions[i] +
+                                (i < numExceptions.length - 1 ? "," : ""));
+    }
+    System.out.println(line);
+  }
+
+  private void printOpcodes() {
+    // print opcodes with nonzero counts, most frequent first
+    boolean[] printed = new boolean[numOpcodes.length];
+    String line = "Opcodes:";
+
+    while (true) {
+      int max = -1;
+      for (int i = 0; i < numOpcodes.length; i++) {
+        if (!printed[i] && numOpcodes[i] > 0 &&
+            (max == -1 || numOpcodes[i] > numOpcodes[max]))
+          max = i;
+      }
+      if (max == -1)
+        break;
+
+      printed[max] = true;
+
+      line = printWrapped(line, " " + opcodeNames[max] + " " +
+                                numOpcodes[max]);
+    }
+
+    System.out.println(line);
+  }
+
+  /**
+   * Append <i>entry</i> to <i>line</i>, first printing <i>line</i> and
+   * starting an indented one if the entry would not fit.
+   */
+  private static String printWrapped(String line, String entry) {
+    if (line.length() + entry.length() > 78) {
+      System.out.println(line);
+      line = "           ";
+    }
+
+    return line + entry;
+  }
+
+  /**
+   * Return the number of instructions retired with the specified opcode.
+   *
+   * @param	name	the mnemonic of the opcode, such as <tt>"lw"</tt>.
+   * @return	the number of times the opcode was executed.
+   */
+  public long getOpcodeCount(String name) {
+    for (int i = 0; i < opcodeNames.length; i++) {
+      if (opcodeNames[i].equals(name))
+        return numOpcodes[i];
+    }
+
+    return 0;
   }
 
   /**
@@ -60,6 +132,29 @@ public final class Stats {
   /** The total number of packets Nachos has received from the network. */
   public int numPacketsReceived = 0;
 
+  /** The total number of user instructions retired. */
+  public long numInstructions = 0;
+  /** The number of conditional branches retired. */
+  public long numBranches = 0;
+  /** The number of conditional branches that were taken. */
+  public long numBranchesTaken = 0;
+  /** The number of jump instructions retired. */
+  public long numJumps = 0;
+  /** The number of loads that went through the processor's load delay. */
+  public long numDelayedLoads = 0;
+  /**
+   * The number of user exceptions delivered, indexed by cause (see
+   * <tt>Processor.exceptionNames</tt>).
+   */
+  public long[] numExceptions = new long[Processor.exceptionNames.length];
+  /**
+   * The mnemonics of the MIPS opcodes, in the order used by
+   * <tt>numOpcodes</tt>. Filled in by the processor.
+   */
+  public String[] opcodeNames = new String[0];
+  /** The number of instructions retired, by opcode. */
+  public long[] numOpcodes = new long[0];
+
   /**
    * The amount to advance simulated time after each user instructions is
    * executed.
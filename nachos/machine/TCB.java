@@ -5,13 +5,24 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. Control is handed from one thread to the next by unparking the
+ * next thread and parking the current one, so only one of them runs at a
+ * time.
+ *
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, and the JVM supports them, the JVM
+ * threads are virtual threads, so that Nachos threads do not each pin an
+ * operating system thread. Otherwise they are ordinary platform threads.
  *
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -39,6 +50,57 @@ public final class TCB {
   public static void givePrivilege(Privilege privilege) {
     TCB.privilege = privilege;
     privilege.tcb = new TCBPrivilege();
+
+    if (Config.getBoolean("TCB.virtualThreads", false))
+      findVirtualThreadBuilder();
+
+    maxThreads = Config.getInteger("TCB.maxThreads", 250);
+    stackSize = Config.getInteger("TCB.stackSize", 0);
+
+    int poolSize = Config.getInteger("TCB.poolSize", 16);
+    if (poolSize > 0)
+      idleHosts = new ArrayBlockingQueue<HostThread>(poolSize);
+  }
+
+  /**
+   * Look up <tt>Thread.ofVirtual()</tt> and
+   * <tt>Thread.Builder.unstarted()</tt>, which only exist on JVMs with
+   * virtual threads. If they cannot be found, TCBs use platform threads.
+   */
+  private static void findVirtualThreadBuilder() {
+    privilege.doPrivileged(new Runnable() {
+      public void run() {
+        try {
+          Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+          virtualThreadBuilder =
+            Thread.class.getMethod("ofVirtual").invoke(null);
+          unstartedThread =
+            builderClass.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+          Lib.debug(dbgTCB, "virtual threads not supported, " +
+                    "using platform threads");
+          virtualThreadBuilder = null;
+          unstartedThread = null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Create an unstarted JVM thread to run <i>target</i>: a virtual thread if
+   * one can be made, and a platform thread otherwise. Must be called with
+   * privilege.
+   */
+  private static Thread newJavaThread(Runnable target) {
+    if (virtualThreadBuilder != null) {
+      try {
+        return (Thread) unstartedThread.invoke(virtualThreadBuilder, target);
+      } catch (Exception e) {
+        Lib.debug(dbgTCB, "could not create virtual thread: " + e);
+      }
+    }
+
+    return new Thread(null, target, "TCB", stackSize);
   }
 
   /**
@@ -65,7 +127,7 @@ public final class TCB {
     /* Make sure there aren't too many running TCBs already. This
      * limitation exists in an effort to prevent wild thread usage.
      */
-    Lib.assertTrue(runningThreads.size() < maxThreads);
+    Lib.assertTrue(maxThreads <= 0 || runningThreads.size() < maxThreads);
 
     isFirstTCB = (currentTCB == null);
 
@@ -85,26 +147,26 @@ public final class TCB {
     this.target = target;
 
     if (!isFirstTCB) {
-      /* If this is not the first TCB, we have to make a new Java thread
-       * to run it. Creating Java threads is a privileged operation.
+      /* If this is not the first TCB, we need a Java thread to run it. We
+       * reuse one left idle by a destroyed TCB if there is one, and
+       * otherwise make a new one. Creating Java threads is a privileged
+       * operation.
        */
-      tcbTarget = new Runnable() {
-        public void run() { threadroot(); }
-      };
+      HostThread host = (idleHosts == null) ? null : idleHosts.poll();
+      if (host == null)
+        host = newHostThread();
 
-      privilege.doPrivileged(new Runnable() {
-        public void run() { javaThread = new Thread(tcbTarget); }
-      });
+      javaThread = host.thread;
 
-      /* The Java thread hasn't yet started, but we need to get it
+      /* The Java thread isn't running this TCB yet, but we need to get it
        * blocking in yield(). We do this by temporarily turning off the
-       * current TCB, starting the new Java thread, and waiting for it
-       * to wake us up from threadroot(). Once the new TCB wakes us up,
+       * current TCB, handing this TCB to the Java thread, and waiting for
+       * it to wake us up from threadroot(). Once the new TCB wakes us up,
        * it's safe to context switch to the new TCB.
        */
       currentTCB.running = false;
 
-      this.javaThread.start();
+      host.run(this);
       currentTCB.waitForInterrupt();
     } else {
       /* This is the first TCB, so we don't need to make a new Java
@@ -117,6 +179,18 @@ public final class TCB {
     }
   }
 
+  private static HostThread newHostThread() {
+    Lib.debug(dbgTCB, "creating a new host thread");
+
+    final HostThread host = new HostThread();
+
+    privilege.doPrivileged(new Runnable() {
+      public void run() { host.thread = newJavaThread(host); }
+    });
+
+    return host;
+  }
+
   /**
    * Return the TCB of the currently running thread.
    */
@@ -236,14 +310,14 @@ public final class TCB {
         privilege.exit(1);
       }
 
-      runningThreads.removeElement(this);
+      runningThreads.remove(this);
       if (runningThreads.isEmpty())
         privilege.exit(0);
     } catch (Throwable e) {
       System.out.print("\n");
       e.printStackTrace();
 
-      runningThreads.removeElement(this);
+      runningThreads.remove(this);
       if (runningThreads.isEmpty())
         privilege.exit(1);
       else
@@ -271,31 +345,38 @@ public final class TCB {
   }
 
   /**
-   * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+   * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
    * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
    * TCB needs to go to wait for its turn to run. This includes the ping-pong
    * process of starting and destroying TCBs, as well as in context switching
    * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
    * is updated by <tt>contextSwitch()</tt> before we get called.
+   *
+   * <p>
+   * Handoffs are usually immediate, so on a multiprocessor host we first
+   * spin briefly on the flag, which avoids putting the host thread to sleep
+   * just to wake it up again. <tt>park()</tt> may return spuriously, or
+   * before the flag is set if an unpark from an earlier handoff is still
+   * outstanding, so the flag is always rechecked.
    */
-  private synchronized void waitForInterrupt() {
-    while (!running) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
-      }
-    }
+  private void waitForInterrupt() {
+    for (int i = 0; i < spinLimit && !running; i++)
+      Thread.onSpinWait();
+
+    while (!running)
+      LockSupport.park(this);
   }
 
   /**
    * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-   * and signalling the monitor bound to it. Used in the ping-pong process of
-   * starting and destroying TCBs, as well as in context switching to this
-   * TCB.
+   * and unparking the Java thread bound to it. Used in the ping-pong process
+   * of starting and destroying TCBs, as well as in context switching to this
+   * TCB. Since <tt>running</tt> is volatile, everything the waking thread
+   * did before setting it is visible to this TCB once it sees the flag.
    */
-  private synchronized void interrupt() {
+  private void interrupt() {
     running = true;
-    notify();
+    LockSupport.unpark(javaThread);
   }
 
   private void associateThread(KThread thread) {
@@ -321,9 +402,18 @@ public final class TCB {
 
   /**
    * The maximum number of started, non-destroyed TCB's that can be in
-   * existence.
+   * existence. Set by <tt>TCB.maxThreads</tt>; zero or less means there is
+   * no limit.
    */
-  public static final int maxThreads = 250;
+  private static int maxThreads = 250;
+
+  /**
+   * The stack size, in bytes, requested for each platform thread, set by
+   * <tt>TCB.stackSize</tt>. Zero means the JVM's default. Lowering it bounds
+   * the host memory reserved for each Nachos thread; virtual threads grow
+   * their stacks as needed and ignore it.
+   */
+  private static long stackSize = 0;
 
   /**
    * A reference to the currently running TCB. It is initialized to
@@ -341,8 +431,8 @@ public final class TCB {
   private static TCB currentTCB = null;
 
   /**
-   * A vector containing all <i>running</i> TCB objects. It is initialized to
-   * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+   * A set containing all <i>running</i> TCB objects. It is initialized to
+   * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
    * added only in <tt>start(Runnable)</tt>, which can only be invoked once
    * on each TCB object. TCB objects are removed only in each of the
    * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
@@ -350,13 +440,36 @@ public final class TCB {
    * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
    * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
    * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-   * the first TCB is created, this vector is basically never empty.
+   * the first TCB is created, this set is basically never empty.
+   *
+   * <p>
+   * A destroyed TCB removes itself after waking up the TCB that destroyed
+   * it, so the set must be safe for concurrent use.
    */
-  private static Vector<TCB> runningThreads = new Vector<TCB>();
+  private static Set<TCB> runningThreads = ConcurrentHashMap.newKeySet();
 
   private static Privilege privilege;
   private static KThread toBeDestroyed = null;
 
+  /**
+   * The <tt>Thread.Builder</tt> used to create virtual threads, and its
+   * <tt>unstarted()</tt> method, or <tt>null</tt> if TCBs use platform
+   * threads.
+   */
+  private static Object virtualThreadBuilder = null;
+  private static Method unstartedThread = null;
+
+  /**
+   * The number of times <tt>waitForInterrupt()</tt> polls the
+   * <tt>running</tt> flag before parking. Spinning is pointless on a
+   * uniprocessor host, where the thread we are waiting for cannot run until
+   * we stop.
+   */
+  private static final int spinLimit =
+    (Runtime.getRuntime().availableProcessors() > 1) ? 1000 : 0;
+
+  private static final char dbgTCB = 'T';
+
   /**
    * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
    * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -380,8 +493,12 @@ public final class TCB {
    * when the associated Java thread ought to run ASAP. When starting or
    * destroying a TCB, this is temporarily true for a thread other than that
    * of the current TCB.
+   *
+   * <p>
+   * This flag is the only synchronization between the thread handing off
+   * control and the thread receiving it, so it is volatile.
    */
-  private boolean running = false;
+  private volatile boolean running = false;
 
   /**
    * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -393,7 +510,54 @@ public final class TCB {
   private KThread nachosThread = null;
   private boolean associated = false;
   private Runnable target;
-  private Runnable tcbTarget;
+
+  /**
+   * Java threads that are not bound to any TCB, and are parked waiting for
+   * <tt>start()</tt> to give them one, or <tt>null</tt> if
+   * <tt>TCB.poolSize</tt> is zero. A thread adds itself when its TCB is
+   * destroyed, unless the pool is already full, in which case it exits.
+   */
+  private static ArrayBlockingQueue<HostThread> idleHosts = null;
+
+  /**
+   * The body of every Java thread other than the first: it runs TCBs, one
+   * after another, each of them from <tt>threadroot()</tt> until it is
+   * destroyed.
+   */
+  private static class HostThread implements Runnable {
+    /**
+     * Give this thread a TCB to run, starting the Java thread if this is
+     * its first TCB, and unparking it otherwise.
+     */
+    void run(TCB tcb) {
+      next = tcb;
+
+      if (started) {
+        LockSupport.unpark(thread);
+      } else {
+        started = true;
+        thread.start();
+      }
+    }
+
+    public void run() {
+      while (true) {
+        TCB tcb;
+        while ((tcb = next) == null)
+          LockSupport.park(this);
+        next = null;
+
+        tcb.threadroot();
+
+        if (idleHosts == null || !idleHosts.offer(this))
+          return;
+      }
+    }
+
+    private Thread thread;
+    private boolean started = false;
+    private volatile TCB next = null;
+  }
 
   private static class TCBPrivilege implements Privilege.TCBPrivilege {
     public void associateThread(KThread thread) {
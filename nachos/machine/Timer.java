@@ -37,6 +37,10 @@ public final class Timer {
       }
     };
 
+    timerHandle = privilege.interrupt.newHandle("timer", timerInterrupt);
+    autoGraderHandle =
+        privilege.interrupt.newHandle("timerAG", autoGraderInterrupt);
+
     scheduleInterrupt();
   }
 
@@ -69,16 +73,18 @@ public final class Timer {
     int delay = Stats.TimerTicks;
     delay += Lib.random(delay / 10) - (delay / 20);
 
-    privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+    timerHandle.reschedule(delay);
   }
 
   private void scheduleAutoGraderInterrupt() {
-    privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+    autoGraderHandle.reschedule(1);
   }
 
   private long lastTimerInterrupt;
   private Runnable timerInterrupt;
   private Runnable autoGraderInterrupt;
+  private Privilege.InterruptHandle timerHandle;
+  private Privilege.InterruptHandle autoGraderHandle;
 
   private Privilege privilege;
   private Runnable handler = null;
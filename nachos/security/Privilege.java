@@ -148,6 +148,17 @@ public abstract class Privilege {
      */
     public void schedule(long when, String type, Runnable handler);
 
+    /**
+     * Create a handle for an interrupt that can be scheduled, moved and
+     * cancelled any number of times. The interrupt is initially not
+     * scheduled.
+     *
+     * @param	type	a name for the type of interrupt.
+     * @param	handler	the interrupt handler to call.
+     * @return	a handle for the interrupt.
+     */
+    public InterruptHandle newHandle(String type, Runnable handler);
+
     /**
      * Advance the simulated time.
      *
@@ -157,6 +168,44 @@ public abstract class Privilege {
      *		MIPS user code.
      */
     public void tick(boolean inKernelMode);
+
+    /**
+     * Return the simulated time at which the earliest pending interrupt
+     * is due. Until then, advancing the simulated time will not invoke any
+     * interrupt handler.
+     *
+     * @return	the time of the earliest pending interrupt, or
+     *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+     */
+    public long nextDueTime();
+  }
+
+  /**
+   * A handle for an interrupt created with
+   * <tt>InterruptPrivilege.newHandle()</tt>. At most one occurrence of the
+   * interrupt is pending at a time.
+   */
+  public interface InterruptHandle {
+    /**
+     * Schedule the interrupt to occur <i>when</i> ticks from now. If it is
+     * already pending, it is moved rather than scheduled a second time.
+     *
+     * @param	when	the number of ticks until the interrupt should
+     *			occur.
+     */
+    public void reschedule(long when);
+
+    /**
+     * Cancel the pending occurrence of the interrupt, if there is one.
+     */
+    public void cancel();
+
+    /**
+     * Test whether the interrupt is scheduled and has not yet occurred.
+     *
+     * @return	<tt>true</tt> if the interrupt is pending.
+     */
+    public boolean isPending();
   }
 
   /**
@@ -42,7 +42,8 @@ public class Alarm {
       }
     }
 
-    KThread.currentThread().yield();
+    if (ThreadedKernel.scheduler.preemptingCurrentThread())
+      KThread.currentThread().yield();
   }
 
   /**
@@ -64,10 +65,10 @@ public class Alarm {
     long wakeTime = Machine.timer().getTime() + x;
 
     if (wakeTime > Machine.timer().getTime()) {
-      waitQueue.add( new Pair(KThread.currentThread(), wakeTime) );
-
       boolean intStatus = Machine.interrupt().disable();
 
+      waitQueue.add( new Pair(KThread.currentThread(), wakeTime) );
+
       KThread.sleep();
 
       Machine.interrupt().restore(intStatus);
@@ -36,12 +36,14 @@ public class Condition2 {
   public void sleep() {
     Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+    ThreadedKernel.scheduler.blockingCurrentThread();
+
+    boolean intStatus = Machine.interrupt().disable();
+
     waitQueue.add(KThread.currentThread());
 
     conditionLock.release();
 
-    boolean intStatus = Machine.interrupt().disable();
-
     KThread.sleep();
 
     Machine.interrupt().restore(intStatus);
@@ -0,0 +1,416 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A priority scheduler with an earliest-deadline-first class for periodic
+ * real-time threads.
+ *
+ * <p>
+ * A thread joins the real-time class with <tt>setRealTime()</tt>, declaring
+ * its period, its relative deadline, and the processor time each job needs.
+ * It is only admitted if the total density (cost over the smaller of
+ * deadline and period) of all real-time threads stays within
+ * <tt>EDFScheduler.maxUtilization</tt>, which is enough for EDF to meet
+ * every deadline. At the end of each job the thread calls
+ * <tt>waitForNextPeriod()</tt>, which counts a deadline miss if the job
+ * finished late, and sleeps on the alarm until the next period starts. Its
+ * share of the processor is released by <tt>clearRealTime()</tt>, or when
+ * it finishes.
+ *
+ * <p>
+ * The ready queue runs real-time threads before all other threads, in order
+ * of their absolute deadlines. Other threads are scheduled by priority, as
+ * in a priority scheduler. A real-time thread waiting for a lock donates the
+ * maximum priority to its holder.
+ *
+ * <p>
+ * Releases are only as precise as the alarm, which wakes threads on timer
+ * interrupts.
+ */
+public class EDFScheduler extends PriorityScheduler {
+  /**
+   * Allocate a new EDF scheduler.
+   */
+  public EDFScheduler() {
+    maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+  }
+
+  /**
+   * Allocate a new ready queue, which runs real-time threads first.
+   *
+   * @return	a new ready queue.
+   */
+  @Override
+  public ThreadQueue newReadyQueue() {
+    return new EDFQueue();
+  }
+
+  @Override
+  protected EDFThreadState getThreadState(KThread thread) {
+    if (thread.schedulingState == null)
+      thread.schedulingState = new EDFThreadState(thread);
+
+    return (EDFThreadState)thread.schedulingState;
+  }
+
+  /**
+   * Move the specified thread into the real-time class, if it can be
+   * admitted. Its first job is released now. Must be called with
+   * interrupts disabled.
+   *
+   * @param	thread	the thread.
+   * @param	period	the ticks between releases of its jobs.
+   * @param	deadline	the ticks after a release by which the job must
+   *				finish; at most <i>period</i>.
+   * @param	cost	the processor ticks a job needs at most.
+   * @return	<tt>true</tt> if the thread was admitted, or <tt>false</tt>
+   *		if it would take the real-time threads over
+   *		<tt>maxUtilization</tt>, in which case nothing changes.
+   */
+  public boolean setRealTime(KThread thread, long period, long deadline,
+                             long cost) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    Lib.assertTrue(period > 0 && deadline > 0 && deadline <= period &&
+                   cost > 0);
+
+    EDFThreadState state = getThreadState(thread);
+    double density = (double)cost / deadline;
+    double others = utilization - (state.realTime ? state.density() : 0);
+
+    if (others + density > maxUtilization) {
+      Lib.debug(dbgEDFScheduler, "Not admitting " + thread + ": utilization "
+                + (others + density));
+      return false;
+    }
+
+    utilization = others + density;
+
+    state.realTime = true;
+    state.period = period;
+    state.deadline = deadline;
+    state.cost = cost;
+    state.release = Machine.timer().getTime();
+    state.absoluteDeadline = state.release + deadline;
+    state.repositionWaits();
+    state.updateEffectivePriority();
+    return true;
+  }
+
+  /**
+   * Move the specified thread back to the priority class, releasing its
+   * share of the processor. Must be called with interrupts disabled.
+   *
+   * @param	thread	the thread.
+   */
+  public void clearRealTime(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    EDFThreadState state = getThreadState(thread);
+    if (!state.realTime)
+      return;
+
+    utilization -= state.density();
+    state.realTime = false;
+    state.repositionWaits();
+    state.updateEffectivePriority();
+  }
+
+  /**
+   * Release the processor share of the finishing thread, if it is a
+   * real-time thread.
+   */
+  @Override
+  public void finishingCurrentThread() {
+    clearRealTime(KThread.currentThread());
+  }
+
+  /**
+   * Finish the current real-time thread's job, and wait until its next job
+   * is released. If the job finished after its deadline, a miss is
+   * counted. If the next release has already passed, returns at once.
+   */
+  public void waitForNextPeriod() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    EDFThreadState state = getThreadState(KThread.currentThread());
+    Lib.assertTrue(state.realTime);
+
+    long time = Machine.timer().getTime();
+    state.jobs++;
+    if (time > state.absoluteDeadline) {
+      state.misses++;
+      totalMisses++;
+      Lib.debug(dbgEDFScheduler, KThread.currentThread() + " missed its "
+                + "deadline by " + (time - state.absoluteDeadline));
+    }
+
+    state.release += state.period;
+    state.absoluteDeadline = state.release + state.deadline;
+
+    if (state.release > time)
+      ThreadedKernel.alarm.waitUntil(state.release - time);
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Return the number of jobs of the specified thread that finished after
+   * their deadlines. Must be called with interrupts disabled.
+   *
+   * @param	thread	the thread.
+   * @return	the deadline misses of the thread.
+   */
+  public int getDeadlineMisses(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    return getThreadState(thread).misses;
+  }
+
+  /**
+   * Return the number of jobs of the specified thread that have finished.
+   * Must be called with interrupts disabled.
+   *
+   * @param	thread	the thread.
+   * @return	the jobs completed by the thread.
+   */
+  public int getJobs(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    return getThreadState(thread).jobs;
+  }
+
+  /**
+   * Return the number of deadline misses of all threads.
+   *
+   * @return	the total deadline misses.
+   */
+  public int getTotalDeadlineMisses() { return totalMisses; }
+
+  /**
+   * Return the total density of the admitted real-time threads.
+   *
+   * @return	the processor share reserved for real-time threads.
+   */
+  public double getUtilization() { return utilization; }
+
+  private static final char dbgEDFScheduler = 'e';
+
+  /** The largest total density that real-time threads may reserve. */
+  protected double maxUtilization;
+
+  private double utilization = 0;
+  private int totalMisses = 0;
+
+  /*************************************************************************************************/
+  /**
+   * The ready queue: a <tt>PriorityQueue</tt> whose heap puts real-time
+   * threads first, by absolute deadline, and then other threads by
+   * priority. A waiting thread's deadline does not change, since it is only
+   * set by the thread itself or with <tt>setRealTime()</tt>, which
+   * repositions it.
+   */
+  protected class EDFQueue extends PriorityQueue {
+    EDFQueue() {
+      super(false);
+    }
+
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      OrderedKThread temp = new OrderedKThread(thread, nextOrder++, this);
+      add(temp);
+      getThreadState(thread).waitForAccess(temp);
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      if (isEmpty())
+        return null;
+      OrderedKThread nextt = poll();
+      getThreadState(nextt.thread).RemoveWait(nextt);
+      return nextt.thread;
+    }
+
+    public int compare(OrderedKThread t1, OrderedKThread t2) {
+      EDFThreadState s1 = getThreadState(t1.thread);
+      EDFThreadState s2 = getThreadState(t2.thread);
+
+      if (s1.realTime != s2.realTime)
+        return s1.realTime ? -1 : 1;
+      if (!s1.realTime)
+        return super.compare(t1, t2);
+
+      int Cmpr = Long.compare(s1.absoluteDeadline, s2.absoluteDeadline);
+      if (Cmpr == 0)
+        return Long.compare(t1.order, t2.order);
+      return Cmpr;
+    }
+  }
+
+  /*************************************************************************************************/
+
+  protected class EDFThreadState extends ThreadState {
+    public EDFThreadState(KThread thread) {
+      super(thread);
+    }
+
+    /* real-time threads donate the maximum priority through locks */
+    @Override
+    public int computeEffectivePriority() {
+      if (realTime)
+        return priorityMaximum;
+      return super.computeEffectivePriority();
+    }
+
+    double density() {
+      return (double)cost / deadline;
+    }
+
+    /** Whether the associated thread is in the real-time class. */
+    protected boolean realTime = false;
+    /** The declared period, relative deadline and cost, in ticks. */
+    protected long period, deadline, cost;
+    /** The release time and absolute deadline of the current job. */
+    protected long release, absoluteDeadline;
+    /** The jobs finished, and those of them that missed their deadline. */
+    protected int jobs = 0, misses = 0;
+  }
+
+  /**
+   * Tests for EDFScheduler. They need it to be the kernel's scheduler, with
+   * the default <tt>maxUtilization</tt>.
+   */
+  private static EDFScheduler scheduler() {
+    return (EDFScheduler)ThreadedKernel.scheduler;
+  }
+
+  private static boolean nearly(double a, double b) {
+    return Math.abs(a - b) < 1e-9;
+  }
+
+  public static void admissionTest() {
+    KThread a = new KThread(), b = new KThread(), c = new KThread();
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    Lib.assertTrue(scheduler().setRealTime(a, 1000, 1000, 500));
+    Lib.assertTrue(scheduler().setRealTime(b, 2000, 1000, 400));
+    Lib.assertTrue(nearly(scheduler().getUtilization(), 0.9));
+
+    /* 0.9 + 0.2 is too much, until a leaves */
+    Lib.assertTrue(!scheduler().setRealTime(c, 1000, 1000, 200));
+    scheduler().clearRealTime(a);
+    Lib.assertTrue(scheduler().setRealTime(c, 1000, 1000, 200));
+
+    /* changing b's parameters replaces its share */
+    Lib.assertTrue(scheduler().setRealTime(b, 1000, 1000, 800));
+    Lib.assertTrue(nearly(scheduler().getUtilization(), 1.0));
+
+    scheduler().clearRealTime(b);
+    scheduler().clearRealTime(c);
+    Lib.assertTrue(nearly(scheduler().getUtilization(), 0));
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("EDFScheduler admission control passed.");
+  }
+
+  private static class recordTest implements Runnable {
+    recordTest(StringBuffer order, String name) {
+      this.order = order;
+      this.name = name;
+    }
+
+    public void run() {
+      order.append(name + " ");
+    }
+
+    private StringBuffer order;
+    private String name;
+  }
+
+  public static void deadlineOrderTest() {
+    StringBuffer order = new StringBuffer();
+    long[] deadlines = { 3000, 1000, 2000 };
+    KThread[] threads = new KThread[4];
+
+    for (int i = 0; i < 3; i++) {
+      threads[i] = new KThread(new recordTest(order, "d" + deadlines[i]));
+      threads[i].setName("d" + deadlines[i]);
+    }
+    threads[3] = new KThread(new recordTest(order, "best-effort"));
+    threads[3].setName("best-effort");
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    /* forked together, so they are all waiting when the first one runs */
+    scheduler().setPriority(threads[3], priorityMaximum);
+    threads[3].fork();
+    for (int i = 0; i < 3; i++) {
+      Lib.assertTrue(scheduler().setRealTime(threads[i], 4000, deadlines[i],
+                                             100));
+      threads[i].fork();
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    for (int i = 0; i < 4; i++)
+      threads[i].join();
+
+    System.out.println("EDFScheduler ran: " + order);
+    Lib.assertTrue(order.toString().equals("d1000 d2000 d3000 best-effort "));
+
+    /* the finished threads gave their shares back */
+    Lib.assertTrue(nearly(scheduler().getUtilization(), 0));
+  }
+
+  private static class periodicTest implements Runnable {
+    public void run() {
+      /* the first job sleeps past its deadline, the others finish at once
+       * and wait for the next period */
+      ThreadedKernel.alarm.waitUntil(4000);
+      for (int i = 0; i < 3; i++) {
+        long time = Machine.timer().getTime();
+        scheduler().waitForNextPeriod();
+        Lib.assertTrue(Machine.timer().getTime() - time > 4000);
+      }
+    }
+  }
+
+  public static void deadlineMissTest() {
+    KThread periodic = new KThread(new periodicTest());
+    periodic.setName("periodic");
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    Lib.assertTrue(scheduler().setRealTime(periodic, 10000, 2000, 500));
+    int totalMisses = scheduler().getTotalDeadlineMisses();
+
+    Machine.interrupt().restore(intStatus);
+
+    periodic.fork();
+    periodic.join();
+
+    intStatus = Machine.interrupt().disable();
+
+    System.out.println("EDFScheduler periodic thread: " +
+                       scheduler().getJobs(periodic) + " jobs, " +
+                       scheduler().getDeadlineMisses(periodic) + " missed");
+    Lib.assertTrue(scheduler().getJobs(periodic) == 3);
+    Lib.assertTrue(scheduler().getDeadlineMisses(periodic) == 1);
+    Lib.assertTrue(scheduler().getTotalDeadlineMisses() == totalMisses + 1);
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  public static void selfTest() {
+    admissionTest();
+    deadlineOrderTest();
+    deadlineMissTest();
+  }
+}
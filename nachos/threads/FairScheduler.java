@@ -0,0 +1,291 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor fairly, in the manner of the Linux
+ * completely fair scheduler.
+ *
+ * <p>
+ * Each thread has a <i>virtual runtime</i>: the ticks it has spent on the
+ * processor, measured with <tt>Machine.timer().getTime()</tt> at every
+ * context switch, and scaled down by a weight that grows with its effective
+ * priority. The ready queue always chooses the thread with the smallest
+ * virtual runtime, so over time each thread gets a share of the processor
+ * in proportion to its weight, and a thread that has run less recently
+ * runs first.
+ *
+ * <p>
+ * A thread that starts waiting for the processor after being blocked is
+ * placed no more than <tt>FairScheduler.wakeupCredit</tt> ticks behind the
+ * smallest virtual runtime in the queue, so it runs soon after it wakes up
+ * but cannot claim the time it spent blocked. A new thread starts at the
+ * smallest virtual runtime.
+ *
+ * <p>
+ * Other queues are those of a priority scheduler, so priority is still
+ * donated through locks and joins, and a donation also raises the weight of
+ * the thread that receives it.
+ */
+public class FairScheduler extends PriorityScheduler {
+  /**
+   * Allocate a new fair scheduler.
+   */
+  public FairScheduler() {
+    wakeupCredit = Config.getInteger("FairScheduler.wakeupCredit", 1000);
+  }
+
+  /**
+   * Allocate a new ready queue, ordered by virtual runtime.
+   *
+   * @return	a new ready queue.
+   */
+  @Override
+  public ThreadQueue newReadyQueue() {
+    return new FairQueue();
+  }
+
+  @Override
+  protected FairThreadState getThreadState(KThread thread) {
+    if (thread.schedulingState == null)
+      thread.schedulingState = new FairThreadState(thread);
+
+    return (FairThreadState)thread.schedulingState;
+  }
+
+  /**
+   * Return the weight of a thread with the specified effective priority.
+   * Each step of priority is worth 25% more of the processor, and a thread
+   * of the default priority has weight <tt>weightDefault</tt>.
+   *
+   * @param	priority	an effective priority.
+   * @return	the weight of the priority.
+   */
+  public static int getWeight(int priority) {
+    return weights[priority - priorityMinimum];
+  }
+
+  /** The weight of a thread of the default priority. */
+  public static final int weightDefault = 1024;
+
+  private static final int[] weights =
+      { 819, 1024, 1280, 1600, 2000, 2500, 3125, 3906 };
+
+  private static final char dbgFairScheduler = 'f';
+
+  /** How far behind the queue a thread that wakes up is placed. */
+  protected int wakeupCredit;
+
+  /*************************************************************************************************/
+  /**
+   * The ready queue: a <tt>PriorityQueue</tt> whose heap is ordered by
+   * virtual runtime instead of by priority. Since only the current thread
+   * is charged for time, the virtual runtime of a waiting thread never
+   * changes, and a donation to it does not move it.
+   */
+  protected class FairQueue extends PriorityQueue {
+    FairQueue() {
+      super(false);
+    }
+
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      FairThreadState state = getThreadState(thread);
+
+      if (thread == KThread.currentThread()) {
+        /* yielding: account for the time it just ran */
+        state.charge();
+      }
+      else if (!state.started) {
+        state.vruntime = minVruntime;
+      }
+      else {
+        state.vruntime = Math.max(state.vruntime,
+                                  minVruntime - wakeupCredit);
+      }
+      state.started = true;
+
+      OrderedKThread temp = new OrderedKThread(thread, nextOrder++, this);
+      add(temp);
+      state.waitForAccess(temp);
+      state.ready = true;
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      FairThreadState current = getThreadState(KThread.currentThread());
+      if (!current.ready) {
+        /* blocking or finishing, so it was not charged by waitForAccess() */
+        current.charge();
+      }
+
+      if (isEmpty())
+        return null;
+
+      OrderedKThread nextt = poll();
+      FairThreadState state = getThreadState(nextt.thread);
+      state.RemoveWait(nextt);
+      state.ready = false;
+      state.chargedUntil = Machine.timer().getTime();
+      minVruntime = Math.max(minVruntime, state.vruntime);
+
+      if (Lib.test(dbgFairScheduler))
+        Lib.debug(dbgFairScheduler, "Running " + nextt.thread
+                  + " with virtual runtime " + state.vruntime);
+
+      return nextt.thread;
+    }
+
+    /* smallest virtual runtime first, then first come first serve */
+    public int compare(OrderedKThread t1, OrderedKThread t2) {
+      int Cmpr = Long.compare(getThreadState(t1.thread).vruntime,
+                              getThreadState(t2.thread).vruntime);
+      if (Cmpr == 0)
+        return Long.compare(t1.order, t2.order);
+      return Cmpr;
+    }
+
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      System.out.print("Queue size: ");
+      System.out.print(waitCount);
+      System.out.print(", with: ");
+      for (int i = 0; i < waitCount; i++) {
+        KThread iter = waitHeap[i].thread;
+        System.out.print(iter + " virtual runtime: " +
+                         getThreadState(iter).vruntime + "\n");
+      }
+      System.out.print("\n");
+    }
+
+    /* the virtual runtime of the last thread chosen, which never falls */
+    private long minVruntime = 0;
+  }
+
+  /*************************************************************************************************/
+
+  protected class FairThreadState extends ThreadState {
+    public FairThreadState(KThread thread) {
+      super(thread);
+    }
+
+    /* add the time since this thread was last charged, scaled by its
+     * weight, to its virtual runtime. A thread that has been charged has
+     * run, so it is no longer new */
+    void charge() {
+      long time = Machine.timer().getTime();
+      vruntime += (time - chargedUntil) * weightDefault /
+                  getWeight(getEffectivePriority());
+      chargedUntil = time;
+      started = true;
+    }
+
+    /** The weighted ticks this thread has run for. */
+    protected long vruntime = 0;
+    /** The time up to which this thread has been charged. */
+    protected long chargedUntil = 0;
+    /** Whether this thread is waiting for the processor. */
+    protected boolean ready = false;
+    /** Whether this thread has run or waited for the processor before. */
+    protected boolean started = false;
+  }
+
+  /**
+   * Tests for FairScheduler. They need it to be the kernel's scheduler, with
+   * the default <tt>wakeupCredit</tt>. Each uses a ready queue of its own,
+   * with threads that never run, and interrupts disabled so that no time
+   * passes.
+   */
+  private static FairScheduler scheduler() {
+    return (FairScheduler)ThreadedKernel.scheduler;
+  }
+
+  /* a thread that has run before, for <i>vruntime</i> weighted ticks */
+  private static KThread startedThread(long vruntime) {
+    KThread thread = new KThread();
+    FairThreadState state = scheduler().getThreadState(thread);
+    state.started = true;
+    state.vruntime = vruntime;
+    return thread;
+  }
+
+  public static void vruntimeOrderTest() {
+    ThreadQueue queue = scheduler().newReadyQueue();
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    KThread[] threads = { startedThread(3000), startedThread(1000),
+                          startedThread(2000), startedThread(1000) };
+    for (int i = 0; i < threads.length; i++)
+      queue.waitForAccess(threads[i]);
+
+    /* smallest virtual runtime first, first come first served on a tie */
+    int[] order = { 1, 3, 2, 0 };
+    for (int i = 0; i < order.length; i++)
+      Lib.assertTrue(queue.nextThread() == threads[order[i]]);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("FairScheduler virtual runtime order passed.");
+  }
+
+  public static void wakeupCreditTest() {
+    ThreadQueue queue = scheduler().newReadyQueue();
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    /* choosing a thread at 10000 brings the queue up to it */
+    KThread running = startedThread(10000);
+    queue.waitForAccess(running);
+    Lib.assertTrue(queue.nextThread() == running);
+
+    /* a thread that slept for long wakes up only wakeupCredit behind, and
+     * one that slept briefly keeps its own virtual runtime */
+    KThread longSleeper = startedThread(0);
+    KThread shortSleeper = startedThread(9500);
+    queue.waitForAccess(longSleeper);
+    queue.waitForAccess(shortSleeper);
+    Lib.assertTrue(scheduler().getThreadState(longSleeper).vruntime == 9000);
+    Lib.assertTrue(scheduler().getThreadState(shortSleeper).vruntime == 9500);
+
+    Lib.assertTrue(queue.nextThread() == longSleeper);
+    Lib.assertTrue(queue.nextThread() == shortSleeper);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("FairScheduler wakeup credit passed.");
+  }
+
+  public static void newThreadTest() {
+    ThreadQueue queue = scheduler().newReadyQueue();
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    KThread running = startedThread(50000);
+    queue.waitForAccess(running);
+    Lib.assertTrue(queue.nextThread() == running);
+
+    /* a new thread starts level with the queue, not at zero, where it
+     * would have the processor to itself until it caught up */
+    KThread created = new KThread();
+    queue.waitForAccess(running);
+    queue.waitForAccess(created);
+    Lib.assertTrue(scheduler().getThreadState(created).vruntime == 50000);
+    Lib.assertTrue(queue.nextThread() == running);
+    Lib.assertTrue(queue.nextThread() == created);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("FairScheduler new thread passed.");
+  }
+
+  public static void selfTest() {
+    vruntimeOrderTest();
+    wakeupCreditTest();
+    newThreadTest();
+  }
+}
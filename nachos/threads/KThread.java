@@ -47,7 +47,7 @@ public class KThread {
     if (currentThread != null) {
       tcb = new TCB();
     } else {
-      readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+      readyQueue = ThreadedKernel.scheduler.newReadyQueue();
       readyQueue.acquire(this);
 
       currentThread = this;
@@ -181,6 +181,7 @@ public class KThread {
     Machine.interrupt().disable();
 
     Machine.autoGrader().finishingCurrentThread();
+    ThreadedKernel.scheduler.finishingCurrentThread();
 
     Lib.assertTrue(toBeDestroyed == null);
     toBeDestroyed = currentThread;
@@ -326,9 +327,14 @@ public class KThread {
    */
   private static void runNextThread() {
     KThread nextThread = readyQueue.nextThread();
-    if (nextThread == null)
+    if (nextThread == null) {
       nextThread = idleThread;
 
+      // nothing can become ready until the next interrupt, so skip over
+      // the idle thread's loop up to it
+      Machine.interrupt().idle();
+    }
+
     nextThread.run();
   }
 
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.util.Random;
@@ -52,9 +53,111 @@ public class LotteryScheduler extends PriorityScheduler {
 
     return (newThreadState)thread.schedulingState;
   }
+  /**
+   * Pass a change of <i>delta</i> in the tickets of <i>changed</i>, which
+   * has already been made, on to the queues it waits on, and from them along
+   * the chain of waiting threads.
+   */
+  protected void transferTickets(newThreadState changed, int delta) {
+    long epoch = ++donationEpoch;
+    changed.donationEpoch = epoch;
+    changed.donationDepth = 0;
+    changed.ticketDelta = delta;
+
+    LinkedList<newThreadState> pending = new LinkedList<newThreadState>();
+    pending.add(changed);
+    passOnTickets(pending, epoch);
+  }
+
+  /**
+   * Pass a change of <i>delta</i> in the tickets waiting on <i>queue</i>,
+   * caused by <i>waiter</i> starting to wait on it, on to the threads that
+   * hold it, and from them along the chain of waiting threads.
+   */
+  protected void transferTickets(LotteryQueue queue, int delta,
+                                 newThreadState waiter) {
+    long epoch = ++donationEpoch;
+    waiter.donationEpoch = epoch;
+    waiter.donationDepth = 0;
+
+    LinkedList<newThreadState> pending = new LinkedList<newThreadState>();
+    ticketsChanged(queue, delta, 1, epoch, pending);
+    passOnTickets(pending, epoch);
+  }
+
+  private void passOnTickets(LinkedList<newThreadState> pending, long epoch) {
+    while (!pending.isEmpty()) {
+      newThreadState state = pending.removeFirst();
+      int delta = state.ticketDelta;
+      state.ticketDelta = 0;
+
+      for (Iterator i = state.WaitList.iterator(); i.hasNext();) {
+        OrderedKThread iter = (OrderedKThread)(i.next());
+        LotteryQueue queue = (LotteryQueue)(iter.queue);
+
+        queue.changeTickets(iter, delta);
+        ticketsChanged(queue, delta, state.donationDepth + 1, epoch, pending);
+      }
+    }
+  }
+
+  /**
+   * Add <i>delta</i> tickets to the threads holding <i>queue</i>. Tickets
+   * add, so a holder's total changes by exactly the change in the queue's
+   * total and nothing has to be summed again. Holders that are not too far
+   * along the chain are added to <i>pending</i>; a holder that is reached
+   * again while still pending (it holds the queue more than once) passes the
+   * changes on together.
+   */
+  private void ticketsChanged(LotteryQueue queue, int delta, int depth,
+                              long epoch, LinkedList<newThreadState> pending) {
+    if (!queue.transferPriority || delta == 0)
+      return;
+
+    for (Iterator i = queue.AcquireList.iterator(); i.hasNext();) {
+      newThreadState holder =
+        getThreadState(((OrderedKThread)(i.next())).thread);
+      holder.Ticket += delta;
+
+      if (Lib.test(dbgLotteryScheduler))
+        Lib.debug(dbgLotteryScheduler, "Thread " + holder.thread
+                  + " now has " + holder.Ticket + " tickets");
+
+      if (holder.donationEpoch == epoch && holder.ticketDelta != 0) {
+        holder.ticketDelta += delta;
+        continue;
+      }
+
+      if (holder.donationEpoch == epoch ||
+          (maxDonationDepth > 0 && depth >= maxDonationDepth)) {
+        Lib.debug(dbgLotteryScheduler, "Tickets of " + holder.thread +
+                  " not passed on: " + (holder.donationEpoch == epoch ?
+                                        "cycle" : "depth limit"));
+        for (Iterator j = holder.WaitList.iterator(); j.hasNext();) {
+          OrderedKThread iter = (OrderedKThread)(j.next());
+          ((LotteryQueue)(iter.queue)).changeTickets(iter, delta);
+        }
+        continue;
+      }
+
+      holder.donationEpoch = epoch;
+      holder.donationDepth = depth;
+      holder.ticketDelta = delta;
+      pending.add(holder);
+    }
+  }
+
+  private static final char dbgLotteryScheduler = 'p';
+
   /*************************************************************************************************/
   /**
    * A <tt>ThreadQueue</tt> that draws threads through lottery.
+   *
+   * <p>
+   * The waiting threads occupy the first <tt>waitCount</tt> slots of
+   * <tt>waitSlots</tt>, in no particular order, and <tt>ticketTree</tt> is a
+   * Fenwick tree over the tickets in those slots. Drawing a winner, and
+   * changing the tickets of a single waiter, both take O(log n).
    */
   protected class LotteryQueue extends PriorityQueue {
     LotteryQueue(boolean transferPriority) {
@@ -66,9 +169,10 @@ public class LotteryScheduler extends PriorityScheduler {
     public void waitForAccess(KThread thread) {
       Lib.assertTrue(Machine.interrupt().disabled());
       OrderedKThread temp = new OrderedKThread(thread, 0, this);
-      waitPQueue.add(temp);
-      getThreadState(thread).waitForAccess(temp);
-      CheckAcquire();
+      newThreadState threadstate = getThreadState(thread);
+      addWaiter(temp, threadstate.Ticket);
+      threadstate.waitForAccess(temp);
+      transferTickets(this, threadstate.Ticket, threadstate);
     }
 
     @Override
@@ -76,63 +180,128 @@ public class LotteryScheduler extends PriorityScheduler {
       Lib.assertTrue(Machine.interrupt().disabled());
       newThreadState threadstate = getThreadState(thread);
       AcquireList.add(threadstate.acquire(this));
-      if (!waitPQueue.isEmpty())
+      if (!isEmpty())
         threadstate.updateLottery();
     }
 
     @Override
     public KThread nextThread() {
       Lib.assertTrue(Machine.interrupt().disabled());
-      if (waitPQueue.isEmpty())
-        return null;
-      OrderedKThread nextt = poll2();
-      getThreadState(nextt.thread).RemoveWait(nextt);
+      OrderedKThread nextt = null;
+      if (!isEmpty()) {
+        nextt = poll2();
+        getThreadState(nextt.thread).RemoveWait(nextt);
+      }
       /*Here we remove all the acquired threads, which can be modified for other
-       * application*/
+       * application. This is done even if nobody is waiting: a thread left
+       * holding a free lock, and later waiting for it, would be transferring
+       * tickets to itself*/
       for (Iterator i = AcquireList.iterator(); i.hasNext();) {
         OrderedKThread iter = (OrderedKThread)(i.next());
         getThreadState(iter.thread).RemoveAcquire(iter);
       }
       AcquireList = new LinkedList<OrderedKThread>();
 
+      if (nextt == null)
+        return null;
       acquire(nextt.thread);
       return (KThread)(nextt.thread);
     }
 
+    /* draw a winner and remove it: descend the tree to the first slot whose
+     * prefix sum of tickets is above the winning ticket */
     public OrderedKThread poll2() {
-      int Ticketsum = SumTicket();
-      int Lottery = ran.nextInt(Ticketsum) + 1;
-      for (Iterator i = waitPQueue.iterator(); i.hasNext();) {
-        OrderedKThread iter = (OrderedKThread)(i.next());
-        Lottery = Lottery - getThreadState(iter.thread).Ticket;
-        if(Lottery<=0){
-          waitPQueue.remove(iter);
-          return iter;
+      int Lottery = ran.nextInt(totalTickets);
+      int slot = 0;
+      for (int step = ticketTree.length - 1; step > 0; step >>= 1) {
+        if (ticketTree[slot + step] <= Lottery) {
+          slot += step;
+          Lottery -= ticketTree[slot];
         }
       }
-      return null;
+      OrderedKThread winner = waitSlots[slot];
+      removeWaiter(winner);
+      return winner;
     }
 
-    /* calculate the sum of tickets in the queue*/
+    /* the sum of tickets in the queue*/
     public int SumTicket() {
-      int SumTick = 0;
-      for (Iterator i = waitPQueue.iterator(); i.hasNext();) {
-        OrderedKThread iter = (OrderedKThread)(i.next());
-        SumTick = SumTick + getThreadState(iter.thread).Ticket;
+      return totalTickets;
+    }
+
+    /* change the tickets a waiting thread holds in this queue */
+    void changeTickets(OrderedKThread entry, int delta) {
+      if (delta == 0)
+        return;
+      slotTickets[entry.index] += delta;
+      addToTree(entry.index, delta);
+    }
+
+    protected void addWaiter(OrderedKThread entry, int tickets) {
+      if (waitCount == waitSlots.length)
+        grow();
+      entry.index = waitCount++;
+      waitSlots[entry.index] = entry;
+      slotTickets[entry.index] = tickets;
+      addToTree(entry.index, tickets);
+    }
+
+    /* empty the entry's slot by moving the last waiter into it */
+    protected void removeWaiter(OrderedKThread entry) {
+      int slot = entry.index;
+      int last = --waitCount;
+      addToTree(slot, -slotTickets[slot]);
+      if (slot != last) {
+        OrderedKThread moved = waitSlots[last];
+        addToTree(last, -slotTickets[last]);
+        addToTree(slot, slotTickets[last]);
+        waitSlots[slot] = moved;
+        slotTickets[slot] = slotTickets[last];
+        moved.index = slot;
       }
-      return SumTick;
+      waitSlots[last] = null;
+      entry.index = -1;
     }
 
-    /* check if there are acquired threads in need of ticket transfer*/
-    public void CheckAcquire() {
-      for (Iterator i = AcquireList.iterator(); i.hasNext();) {
-        OrderedKThread iter = (OrderedKThread)(i.next());
-        newThreadState iterstate = getThreadState(iter.thread);
-        iterstate.updateLottery();
+    private void addToTree(int slot, int delta) {
+      totalTickets += delta;
+      for (int i = slot + 1; i < ticketTree.length; i += i & -i)
+        ticketTree[i] += delta;
+    }
+
+    /* double the number of slots, and rebuild the tree in linear time */
+    private void grow() {
+      int size = waitSlots.length * 2;
+      waitSlots = Arrays.copyOf(waitSlots, size);
+      slotTickets = Arrays.copyOf(slotTickets, size);
+      ticketTree = new int[size + 1];
+      for (int i = 1; i <= size; i++) {
+        ticketTree[i] += slotTickets[i - 1];
+        int parent = i + (i & -i);
+        if (parent <= size)
+          ticketTree[parent] += ticketTree[i];
+      }
+    }
+
+    @Override
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      System.out.print("Queue size: ");
+      System.out.print(waitCount);
+      System.out.print(", with: ");
+      for (int i = 0; i < waitCount; i++) {
+        System.out.print(waitSlots[i].thread + " tickets: " +
+                         slotTickets[i] + "\n");
       }
+      System.out.print("\n");
     }
 
     private Random ran;
+    /* the number of slots is always a power of two */
+    protected OrderedKThread[] waitSlots = new OrderedKThread[4];
+    private int[] slotTickets = new int[4];
+    private int[] ticketTree = new int[5];
+    private int totalTickets = 0;
   }
 
 
@@ -158,6 +327,7 @@ public class LotteryScheduler extends PriorityScheduler {
       return Ticket;
     }
 
+    /* recompute the tickets from scratch, and transfer any change */
     public int updateLottery() {
       Lib.assertTrue(Machine.interrupt().disabled());
       int PrevTicket = Ticket;
@@ -172,24 +342,116 @@ public class LotteryScheduler extends PriorityScheduler {
         }
       }
 
-      if (Ticket != PrevTicket) {
-        for (Iterator i = WaitList.iterator(); i.hasNext();) {
-          OrderedKThread iter = (OrderedKThread)(i.next());
-          if (((LotteryQueue)(iter.queue)).transferPriority) {
-            ((LotteryQueue)(iter.queue)).CheckAcquire();
-          }
-        }
-      }
+      if (Ticket != PrevTicket)
+        transferTickets(this, Ticket - PrevTicket);
 
       return Ticket;
     }
 
     @Override
     public void RemoveAcquire(OrderedKThread othread) {
-      AcquireList.remove(othread);
+      removeEntry(AcquireList, othread);
       updateLottery();
     }
 
     protected int Ticket;
+    /* the change still to be passed on by transferTickets(), or zero */
+    protected int ticketDelta;
+  }
+
+  /**
+   * Tests for LotteryScheduler. They use a scheduler of their own, with
+   * threads that never run.
+   */
+  private static int tickets(LotteryScheduler scheduler, KThread thread) {
+    return scheduler.getThreadState(thread).getTicket();
+  }
+
+  public static void winFrequencyTest() {
+    LotteryScheduler scheduler = new LotteryScheduler();
+    ThreadQueue queue = scheduler.newThreadQueue(false);
+    int[] tickets = { 1, 2, 4 };
+    int[] wins = new int[tickets.length];
+    KThread[] threads = new KThread[tickets.length];
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    for (int i = 0; i < tickets.length; i++) {
+      threads[i] = new KThread();
+      scheduler.setPriority(threads[i], tickets[i]);
+      queue.waitForAccess(threads[i]);
+    }
+
+    /* each winner waits again, so every draw is among all three */
+    for (int draw = 0; draw < 7000; draw++) {
+      KThread winner = queue.nextThread();
+      for (int i = 0; i < tickets.length; i++) {
+        if (threads[i] == winner)
+          wins[i]++;
+      }
+      queue.waitForAccess(winner);
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.print("LotteryScheduler wins:");
+    for (int i = 0; i < tickets.length; i++)
+      System.out.print(" " + wins[i] + " for " + tickets[i] + " tickets");
+    System.out.println();
+
+    /* 1000 wins a ticket are expected, and 250 is six standard deviations
+     * for the thread with 4 tickets */
+    for (int i = 0; i < tickets.length; i++)
+      Lib.assertTrue(Math.abs(wins[i] - 1000 * tickets[i]) < 250);
+  }
+
+  public static void transferTest() {
+    LotteryScheduler scheduler = new LotteryScheduler();
+    KThread owner = new KThread(), holder = new KThread();
+    KThread waiter1 = new KThread(), waiter2 = new KThread();
+    ThreadQueue ownerLock = scheduler.newThreadQueue(true);
+    ThreadQueue lock = scheduler.newThreadQueue(true);
+    ThreadQueue freeLock = scheduler.newThreadQueue(true);
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    scheduler.setPriority(owner, 1);
+    scheduler.setPriority(holder, 1);
+    scheduler.setPriority(waiter1, 3);
+    scheduler.setPriority(waiter2, 2);
+
+    /* the waiters' tickets add up, and pass along the chain */
+    ownerLock.acquire(owner);
+    lock.acquire(holder);
+    ownerLock.waitForAccess(holder);
+    lock.waitForAccess(waiter1);
+    lock.waitForAccess(waiter2);
+    Lib.assertTrue(tickets(scheduler, holder) == 6);
+    Lib.assertTrue(tickets(scheduler, owner) == 7);
+
+    /* the winner takes over the other waiter's tickets, and the holder's
+     * are withdrawn all along the chain */
+    KThread winner = lock.nextThread();
+    Lib.assertTrue(winner == waiter1 || winner == waiter2);
+    Lib.assertTrue(tickets(scheduler, winner) == 5);
+    Lib.assertTrue(tickets(scheduler, holder) == 1);
+    Lib.assertTrue(tickets(scheduler, owner) == 2);
+
+    /* a lock with nobody waiting is still given up, so waiting for it
+     * later transfers nothing to the thread that held it */
+    freeLock.acquire(holder);
+    Lib.assertTrue(freeLock.nextThread() == null);
+    freeLock.waitForAccess(holder);
+    Lib.assertTrue(tickets(scheduler, holder) == 1);
+    Lib.assertTrue(tickets(scheduler, owner) == 2);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("LotteryScheduler ticket transfer passed.");
+  }
+
+  public static void selfTest() {
+    winFrequencyTest();
+    transferTest();
   }
 }
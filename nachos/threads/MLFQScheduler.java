@@ -0,0 +1,477 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Each thread is at one of a number
+ * of levels, and a queue always chooses a thread at the highest level that
+ * has one, first-come first-serve within a level.
+ *
+ * <p>
+ * Threads start at the top level, level 0. The time slice at level
+ * <i>l</i> is <tt>quantum</tt> times 2<sup><i>l</i></sup> timer interrupts.
+ * The alarm only preempts a thread when its time slice runs out, or when a
+ * thread at a higher level is ready; a thread that is still running when
+ * its time slice runs out moves one level down. A thread that blocks for
+ * I/O or for another thread before then moves one level up. Every
+ * <tt>boostInterval</tt> ticks, all threads go back to the top level, so a
+ * thread that was moved down cannot starve.
+ *
+ * <p>
+ * So a CPU-bound thread, such as <tt>matmult</tt>, sinks to the bottom
+ * level, while a thread waiting on the console stays near the top and runs
+ * soon after its input arrives.
+ *
+ * <p>
+ * The levels are read from <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.boostInterval</tt>
+ * (zero turns the boost off). Priorities map onto levels, the top level
+ * being priority <tt>levels - 1</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+  /**
+   * Allocate a new multi-level feedback queue scheduler.
+   */
+  public MLFQScheduler() {
+    levels = Config.getInteger("MLFQScheduler.levels", 4);
+    quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+    boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50000);
+
+    Lib.assertTrue(levels >= 1 && quantum >= 1 && boostInterval >= 0);
+  }
+
+  /**
+   * Allocate a new multi-level thread queue.
+   *
+   * @param	transferPriority	ignored. Levels are never transferred.
+   * @return	a new multi-level thread queue.
+   */
+  public ThreadQueue newThreadQueue(boolean transferPriority) {
+    return new MLFQQueue();
+  }
+
+  /**
+   * Allocate the ready queue, which <tt>preemptingCurrentThread()</tt>
+   * checks for threads at a higher level than the current one.
+   *
+   * @return	a new multi-level thread queue.
+   */
+  public ThreadQueue newReadyQueue() {
+    readyQueue = new MLFQQueue();
+    return readyQueue;
+  }
+
+  public int getPriority(KThread thread) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    return levels - 1 - getThreadState(thread).getLevel();
+  }
+
+  public int getEffectivePriority(KThread thread) {
+    return getPriority(thread);
+  }
+
+  public void setPriority(KThread thread, int priority) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    Lib.assertTrue(priority >= 0 && priority < levels);
+
+    getThreadState(thread).setLevel(levels - 1 - priority);
+  }
+
+  public boolean increasePriority() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    ThreadState state = getThreadState(KThread.currentThread());
+
+    int level = state.getLevel();
+    if (level > 0)
+      state.setLevel(level - 1);
+
+    Machine.interrupt().restore(intStatus);
+    return level > 0;
+  }
+
+  public boolean decreasePriority() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    ThreadState state = getThreadState(KThread.currentThread());
+
+    int level = state.getLevel();
+    if (level < levels - 1)
+      state.setLevel(level + 1);
+
+    Machine.interrupt().restore(intStatus);
+    return level < levels - 1;
+  }
+
+  /**
+   * Charge the current thread for a timer interrupt, and move it down a
+   * level if it has used up its time slice. Also boosts all threads if it is
+   * time to.
+   *
+   * @return	<tt>true</tt> if the current thread has used up its time
+   *		slice, or a thread at a higher level is ready.
+   */
+  public boolean preemptingCurrentThread() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    long time = Machine.timer().getTime();
+    if (boostInterval > 0 && time >= nextBoost) {
+      Lib.debug(dbgMLFQ, "Boosting all threads");
+      boostEpoch++;
+      nextBoost = time + boostInterval;
+    }
+
+    ThreadState state = getThreadState(KThread.currentThread());
+
+    boolean preempt;
+
+    int level = state.getLevel();
+    if (++state.used >= quantum << level) {
+      state.used = 0;
+      preempt = true;
+
+      if (level < levels - 1) {
+        Lib.debug(dbgMLFQ, "Moving " + state.thread + " down to level "
+                  + (level + 1));
+        state.setLevel(level + 1);
+      }
+    } else {
+      // the rest of the slice is kept for when the thread runs again
+      preempt = readyQueue != null && readyQueue.topLevel() < level;
+    }
+
+    Machine.interrupt().restore(intStatus);
+    return preempt;
+  }
+
+  /**
+   * Move the current thread up a level, because it is blocking before
+   * using up its time slice.
+   */
+  public void blockingCurrentThread() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    ThreadState state = getThreadState(KThread.currentThread());
+
+    int level = state.getLevel();
+    if (level > 0) {
+      Lib.debug(dbgMLFQ, "Moving " + state.thread + " up to level "
+                + (level - 1));
+      state.setLevel(level - 1);
+    }
+    state.used = 0;
+
+    Machine.interrupt().restore(intStatus);
+  }
+
+  /**
+   * Return the scheduling state of the specified thread.
+   *
+   * @param	thread	the thread whose scheduling state to return.
+   * @return	the scheduling state of the specified thread.
+   */
+  protected ThreadState getThreadState(KThread thread) {
+    if (thread.schedulingState == null)
+      thread.schedulingState = new ThreadState(thread);
+
+    return (ThreadState)thread.schedulingState;
+  }
+
+  private static final char dbgMLFQ = 'q';
+
+  /** The number of levels. */
+  protected int levels;
+  /** The number of timer interrupts in a time slice at the top level. */
+  protected int quantum;
+  /** The number of ticks between boosts, or zero for none. */
+  protected int boostInterval;
+
+  /* Incremented by every boost. Threads and queues that have not seen the
+   * latest boost move to the top level when they are next used, so the
+   * boost itself takes constant time, and each queue pays for merging its
+   * lists, in time linear in its length, the next time it is used */
+  private long boostEpoch = 0;
+  private long nextBoost = 0;
+
+  /** The ready queue, or <tt>null</tt> if it has not been created yet. */
+  private MLFQQueue readyQueue = null;
+
+  /**
+   * A <tt>ThreadQueue</tt> with a FIFO list for each level. Each list is in
+   * the order its threads arrived at that level, so that a boost can merge
+   * them into one list in arrival order.
+   */
+  protected class MLFQQueue extends ThreadQueue {
+    MLFQQueue() {
+      waitQueues = new ArrayList<LinkedList<KThread>>(levels);
+      for (int i = 0; i < levels; i++)
+        waitQueues.add(new LinkedList<KThread>());
+    }
+
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      catchUp();
+
+      ThreadState state = getThreadState(thread);
+      state.arrival = nextArrival++;
+      waitQueues.get(state.getLevel()).add(thread);
+      state.waitQueue = this;
+      size++;
+    }
+
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      if (size == 0)
+        return null;
+
+      catchUp();
+
+      for (int i = 0; i < levels; i++) {
+        if (!waitQueues.get(i).isEmpty()) {
+          KThread thread = waitQueues.get(i).removeFirst();
+          getThreadState(thread).waitQueue = null;
+          size--;
+          return thread;
+        }
+      }
+
+      Lib.assertNotReached();
+      return null;
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      Lib.assertTrue(size == 0);
+    }
+
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+
+      for (int i = 0; i < levels; i++) {
+        System.out.print("level " + i + ":");
+        for (Iterator<KThread> j = waitQueues.get(i).iterator(); j.hasNext();)
+          System.out.print(" " + j.next());
+        System.out.print("\n");
+      }
+    }
+
+    /* return the highest level with a waiting thread, or levels if none */
+    int topLevel() {
+      catchUp();
+
+      for (int i = 0; i < levels; i++) {
+        if (!waitQueues.get(i).isEmpty())
+          return i;
+      }
+      return levels;
+    }
+
+    /* move a waiting thread to the end of the list for its new level */
+    void move(KThread thread, int from, int to) {
+      catchUp();
+      waitQueues.get(from).remove(thread);
+      waitQueues.get(to).add(thread);
+      getThreadState(thread).arrival = nextArrival++;
+    }
+
+    /* apply any boosts since this queue was last used, merging the lists
+     * into the top level in the order the threads arrived */
+    void catchUp() {
+      if (boostEpoch == MLFQScheduler.this.boostEpoch)
+        return;
+
+      boostEpoch = MLFQScheduler.this.boostEpoch;
+
+      LinkedList<KThread> merged = new LinkedList<KThread>();
+      while (merged.size() < size) {
+        LinkedList<KThread> first = null;
+        for (int i = 0; i < levels; i++) {
+          LinkedList<KThread> list = waitQueues.get(i);
+          if (!list.isEmpty() &&
+              (first == null || getThreadState(list.getFirst()).arrival <
+               getThreadState(first.getFirst()).arrival))
+            first = list;
+        }
+        merged.add(first.removeFirst());
+      }
+      waitQueues.set(0, merged);
+    }
+
+    private ArrayList<LinkedList<KThread>> waitQueues;
+    private int size = 0;
+    private long nextArrival = 0;
+    private long boostEpoch = MLFQScheduler.this.boostEpoch;
+  }
+
+  /**
+   * The scheduling state of a thread: its level, and how much of its time
+   * slice it has used.
+   */
+  protected class ThreadState {
+    /**
+     * Allocate a new <tt>ThreadState</tt> object and associate it with the
+     * specified thread.
+     *
+     * @param	thread	the thread this state belongs to.
+     */
+    public ThreadState(KThread thread) {
+      this.thread = thread;
+    }
+
+    /**
+     * Return the level of the associated thread, after any boosts since it
+     * was last asked for.
+     *
+     * @return	the level of the associated thread.
+     */
+    public int getLevel() {
+      if (boostEpoch != MLFQScheduler.this.boostEpoch) {
+        boostEpoch = MLFQScheduler.this.boostEpoch;
+        level = 0;
+        used = 0;
+      }
+
+      return level;
+    }
+
+    /**
+     * Move the associated thread to another level, and to the matching list
+     * of the queue it is waiting on, if any.
+     *
+     * @param	level	the new level.
+     */
+    public void setLevel(int level) {
+      int from = getLevel();
+      if (waitQueue != null)
+        waitQueue.move(thread, from, level);
+
+      this.level = level;
+    }
+
+    /** The thread with which this object is associated. */
+    protected KThread thread;
+    /** The level of the associated thread, if it has seen the last boost. */
+    protected int level = 0;
+    /** The timer interrupts used in the current time slice. */
+    protected int used = 0;
+    /** The queue the associated thread is waiting on, if any. */
+    protected MLFQQueue waitQueue = null;
+    /** When the associated thread arrived at its level of that queue. */
+    protected long arrival;
+    private long boostEpoch = MLFQScheduler.this.boostEpoch;
+  }
+
+  /**
+   * Tests for MLFQScheduler. They need it to be the kernel's scheduler, with
+   * at least three levels and the boost on. They call
+   * <tt>preemptingCurrentThread()</tt> themselves, with interrupts disabled,
+   * in place of the timer.
+   */
+  private static MLFQScheduler scheduler() {
+    return (MLFQScheduler)ThreadedKernel.scheduler;
+  }
+
+  /* apply any boost that is due, then start the current thread on a fresh
+   * time slice at <i>level</i>. Time stands still while interrupts are
+   * disabled, so no other boost comes before they are enabled again */
+  private static ThreadState freshSlice(int level) {
+    scheduler().preemptingCurrentThread();
+
+    ThreadState state = scheduler().getThreadState(KThread.currentThread());
+    state.setLevel(level);
+    state.used = 0;
+    return state;
+  }
+
+  public static void demotionTest() {
+    boolean intStatus = Machine.interrupt().disable();
+
+    ThreadState state = freshSlice(0);
+    int levels = scheduler().levels;
+
+    /* a thread that uses up its slice at each level moves one level down,
+     * and stays at the bottom */
+    for (int level = 0; level < levels; level++) {
+      for (int i = 1; i < scheduler().quantum << level; i++)
+        Lib.assertTrue(!scheduler().preemptingCurrentThread());
+      Lib.assertTrue(scheduler().preemptingCurrentThread());
+      Lib.assertTrue(state.getLevel() == Math.min(level + 1, levels - 1));
+    }
+
+    freshSlice(0);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("MLFQScheduler demotion passed.");
+  }
+
+  public static void preemptionTest() {
+    KThread high = new KThread(new PriorityScheduler.quickTest());
+    high.setName("high");
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    ThreadState state = freshSlice(2);
+    Lib.assertTrue(!scheduler().preemptingCurrentThread());
+
+    /* a thread ready at a higher level ends the slice early, without
+     * moving the current thread down */
+    scheduler().setPriority(high, scheduler().levels - 1);
+    high.fork();
+    Lib.assertTrue(scheduler().preemptingCurrentThread());
+    Lib.assertTrue(state.getLevel() == 2);
+
+    freshSlice(0);
+
+    Machine.interrupt().restore(intStatus);
+
+    high.join();
+
+    System.out.println("MLFQScheduler preemption passed.");
+  }
+
+  public static void boostTest() {
+    ThreadQueue queue = scheduler().newThreadQueue(false);
+    KThread bottom = new KThread(), middle = new KThread();
+    int top = scheduler().levels - 1;
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    scheduler().setPriority(bottom, 0);
+    scheduler().setPriority(middle, 1);
+    queue.waitForAccess(bottom);
+    queue.waitForAccess(middle);
+
+    Machine.interrupt().restore(intStatus);
+
+    /* sleep through the next boost */
+    ThreadedKernel.alarm.waitUntil(scheduler().boostInterval);
+
+    intStatus = Machine.interrupt().disable();
+
+    /* both are back at the top level, in the order they arrived */
+    Lib.assertTrue(scheduler().getPriority(bottom) == top);
+    Lib.assertTrue(scheduler().getPriority(middle) == top);
+    Lib.assertTrue(queue.nextThread() == bottom);
+    Lib.assertTrue(queue.nextThread() == middle);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("MLFQScheduler boost passed.");
+  }
+
+  public static void selfTest() {
+    demotionTest();
+    preemptionTest();
+    boostTest();
+  }
+}
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Comparator;
@@ -30,7 +31,10 @@ public class PriorityScheduler extends Scheduler {
   /**
    * Allocate a new priority scheduler.
    */
-  public PriorityScheduler() {}
+  public PriorityScheduler() {
+    maxDonationDepth =
+      Config.getInteger("PriorityScheduler.donationDepth", 0);
+  }
 
   /**
    * Allocate a new priority thread queue.
@@ -38,9 +42,13 @@ public class PriorityScheduler extends Scheduler {
    * @param	transferPriority	<tt>true</tt> if this queue should
    *					transfer priority from waiting threads
    *					to the owning thread.
-   * @return	a new priority thread queue.
+   * @return	a new priority thread queue; a <tt>BitmapQueue</tt> if
+   *		it does not transfer priority.
    */
   public ThreadQueue newThreadQueue(boolean transferPriority) {
+    if (!transferPriority)
+      return new BitmapQueue();
+
     return new PriorityQueue(transferPriority);
   }
 
@@ -123,6 +131,116 @@ public class PriorityScheduler extends Scheduler {
 
   private static final char dbgPriorityScheduler = 'p';
 
+  /**
+   * The number of threads along a chain of waiting threads that a change in
+   * donated priority is passed on to, set by
+   * <tt>PriorityScheduler.donationDepth</tt>. Zero means the whole chain.
+   * Threads further along keep their effective priority until it is next
+   * recomputed.
+   */
+  protected int maxDonationDepth;
+
+  /**
+   * Incremented for every change that is propagated along a chain of
+   * waiting threads. A thread whose effective priority changes twice in the
+   * same epoch is on a cycle of threads waiting for each other, so the
+   * change is not passed on again.
+   */
+  protected long donationEpoch = 0;
+
+  /**
+   * Pass a change in the effective priority of <i>changed</i> on to the
+   * threads that hold the queues it waits on, and from them along the chain
+   * of waiting threads.
+   */
+  protected void propagateDonation(ThreadState changed) {
+    long epoch = ++donationEpoch;
+    changed.donationEpoch = epoch;
+    changed.donationDepth = 0;
+
+    LinkedList<ThreadState> pending = new LinkedList<ThreadState>();
+    pending.add(changed);
+    passOnDonations(pending, epoch);
+  }
+
+  /**
+   * Pass a change in the donation of <i>queue</i>, caused by
+   * <i>waiter</i> starting to wait on it, on to the threads that hold it,
+   * and from them along the chain of waiting threads.
+   */
+  protected void propagateDonation(PriorityQueue queue, int oldDonation,
+                                   ThreadState waiter) {
+    long epoch = ++donationEpoch;
+    waiter.donationEpoch = epoch;
+    waiter.donationDepth = 0;
+
+    LinkedList<ThreadState> pending = new LinkedList<ThreadState>();
+    donationChanged(queue, oldDonation, 1, epoch, pending);
+    passOnDonations(pending, epoch);
+  }
+
+  private void passOnDonations(LinkedList<ThreadState> pending, long epoch) {
+    while (!pending.isEmpty()) {
+      ThreadState state = pending.removeFirst();
+
+      for (Iterator i = state.WaitList.iterator(); i.hasNext();) {
+        OrderedKThread iter = (OrderedKThread)(i.next());
+        PriorityQueue queue = (PriorityQueue)(iter.queue);
+
+        int oldDonation = queue.donation;
+        queue.reposition(iter);
+        donationChanged(queue, oldDonation, state.donationDepth + 1, epoch,
+                        pending);
+      }
+    }
+  }
+
+  /**
+   * Pass a change in the donation of <i>queue</i> (its highest waiting
+   * effective priority), which used to be <i>oldDonation</i>, on to the
+   * threads holding it. Only the change is used: a holder rises to a higher
+   * donation, and recomputes its effective priority only if the donation it
+   * had came from this queue and fell. Holders that change, and are not too
+   * far along the chain, are added to <i>pending</i>.
+   */
+  private void donationChanged(PriorityQueue queue, int oldDonation,
+                               int depth, long epoch,
+                               LinkedList<ThreadState> pending) {
+    int donation = queue.donation;
+    if (!queue.transferPriority || donation == oldDonation)
+      return;
+
+    for (Iterator i = queue.AcquireList.iterator(); i.hasNext();) {
+      ThreadState holder = getThreadState(((OrderedKThread)(i.next())).thread);
+      int old = holder.CEpriority;
+
+      if (donation > old)
+        holder.CEpriority = donation;
+      else if (old == oldDonation)
+        holder.CEpriority = holder.computeEffectivePriority();
+
+      if (holder.CEpriority == old)
+        continue;
+
+      if (Lib.test(dbgPriorityScheduler))
+        Lib.debug(dbgPriorityScheduler, "Thread " + holder.thread
+                  + " now has effective priority " + holder.CEpriority);
+
+      if (holder.donationEpoch == epoch ||
+          (maxDonationDepth > 0 && depth >= maxDonationDepth)) {
+        Lib.debug(dbgPriorityScheduler, "Donation to " + holder.thread +
+                  " not passed on: " + (holder.donationEpoch == epoch ?
+                                        "cycle" : "depth limit"));
+        holder.repositionWaits();
+        continue;
+      }
+
+      holder.donationEpoch = epoch;
+      holder.donationDepth = depth;
+      pending.add(holder);
+    }
+  }
+
   /** An entry in queues to record thread registration
    *  order: the order in the waitqueue to ensure FIFO
    *
@@ -130,9 +248,17 @@ public class PriorityScheduler extends Scheduler {
    */
   protected class OrderedKThread {
     public KThread thread;
-    public int order;
+    /* sequence number, increasing in the order threads start waiting */
+    public long order;
     public ThreadQueue queue;
-    OrderedKThread(KThread thread, int order, ThreadQueue queue) {
+    /* position in the queue's heap, or -1 if not in it */
+    int index = -1;
+    /* position in the thread's WaitList or AcquireList */
+    int listIndex = -1;
+    /* neighbours in a BitmapQueue's list for this thread's priority */
+    OrderedKThread prev = null;
+    OrderedKThread next = null;
+    OrderedKThread(KThread thread, long order, ThreadQueue queue) {
       this.thread = thread;
       this.order = order;
       this.queue = queue;
@@ -156,13 +282,15 @@ public class PriorityScheduler extends Scheduler {
 
     public void waitForAccess(KThread thread) {
       Lib.assertTrue(Machine.interrupt().disabled());
-      OrderedKThread temp = new OrderedKThread(thread, waitPQueue.size(), this);
-      waitPQueue.add(temp);
+      OrderedKThread temp = new OrderedKThread(thread, nextOrder++, this);
+      int oldDonation = donation;
+      add(temp);
       // print();
       ThreadState threadstate = getThreadState(thread);
       threadstate.waitForAccess(temp);
       /* check donations: */
-      CheckAcquire(threadstate.CEpriority);
+      if (donation != oldDonation)
+        propagateDonation(this, oldDonation, threadstate);
     }
 
     public void acquire(KThread thread) {
@@ -170,13 +298,13 @@ public class PriorityScheduler extends Scheduler {
       ThreadState threadstate = getThreadState(thread);
       AcquireList.add(threadstate.acquire(this));
       /* update the effective priority if there are waiting threads*/
-      if (!waitPQueue.isEmpty())
+      if (!isEmpty())
         threadstate.updateEffectivePriority();
     }
 
     public KThread nextThread() {
       Lib.assertTrue(Machine.interrupt().disabled());
-      if (waitPQueue.isEmpty())
+      if (isEmpty())
         return null;
       OrderedKThread nextt = poll();
       getThreadState(nextt.thread).RemoveWait(nextt);
@@ -197,57 +325,108 @@ public class PriorityScheduler extends Scheduler {
       int Cmpr = getThreadState(t2.thread).CEpriority -
                  getThreadState(t1.thread).CEpriority;
       if (Cmpr == 0)
-        return t1.order - t2.order;
+        return Long.compare(t1.order, t2.order);
       return Cmpr;
     };
 
+    /* Removes and returns the first waiting thread */
     public OrderedKThread poll() {
-      OrderedKThread poll = null;
-      for (Iterator i = waitPQueue.iterator(); i.hasNext();) {
-        OrderedKThread iter = (OrderedKThread)(i.next());
-        if (poll == null)
-          poll = iter;
-        else {
-          if (compare(poll, iter) > 0)
-            poll = iter;
-        }
-      }
-      for (Iterator i = waitPQueue.iterator(); i.hasNext();) {
-        OrderedKThread iter = (OrderedKThread)(i.next());
-        if (iter.order > poll.order)
-          iter.order--;
-      }
-      waitPQueue.remove(poll);
+      OrderedKThread poll = waitHeap[0];
+      remove(poll);
       return poll;
     }
 
-    public boolean isEmpty() { return waitPQueue.isEmpty(); }
+    public boolean isEmpty() { return waitCount == 0; }
 
     /* Returns the highest effective priority in the waiting queue */
-    public int MaxPriority() {
-      int Maxprior = priorityMinimum;
-      for (Iterator i = waitPQueue.iterator(); i.hasNext();) {
-        OrderedKThread iter = (OrderedKThread)(i.next());
-        Maxprior = max(Maxprior, getThreadState(iter.thread).CEpriority);
+    public int MaxPriority() { return donation; }
+
+    /*
+     * The waiting threads are kept in a binary heap ordered by compare(), in
+     * which each entry knows its own position. A thread's position has to be
+     * fixed with reposition() whenever its effective priority changes.
+     */
+    protected void add(OrderedKThread entry) {
+      if (waitCount == waitHeap.length) {
+        OrderedKThread[] grown = new OrderedKThread[waitHeap.length * 2];
+        System.arraycopy(waitHeap, 0, grown, 0, waitCount);
+        waitHeap = grown;
       }
-      return Maxprior;
+      entry.index = waitCount++;
+      waitHeap[entry.index] = entry;
+      siftUp(entry.index);
+      updateDonation();
     }
 
-    /* check if there are acquired threads in need of priority donation*/
-    public void CheckAcquire(int Cpriority) {
-      for (Iterator i = AcquireList.iterator(); i.hasNext();) {
-        OrderedKThread iter = (OrderedKThread)(i.next());
-        ThreadState iterstate = getThreadState(iter.thread);
-        iterstate.updateEffectivePriority();
+    protected void remove(OrderedKThread entry) {
+      int i = entry.index;
+      OrderedKThread last = waitHeap[--waitCount];
+      waitHeap[waitCount] = null;
+      entry.index = -1;
+      if (last != entry) {
+        waitHeap[i] = last;
+        last.index = i;
+        reposition(last);
+      }
+      updateDonation();
+    }
+
+    /* Restores the heap order after the priority of entry has changed */
+    protected void reposition(OrderedKThread entry) {
+      if (siftUp(entry.index) == entry.index)
+        siftDown(entry.index);
+      updateDonation();
+    }
+
+    private void updateDonation() {
+      if (isEmpty())
+        donation = priorityMinimum;
+      else
+        donation = max(priorityMinimum,
+                       getThreadState(waitHeap[0].thread).CEpriority);
+    }
+
+    private int siftUp(int i) {
+      OrderedKThread entry = waitHeap[i];
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (compare(waitHeap[parent], entry) <= 0)
+          break;
+        waitHeap[i] = waitHeap[parent];
+        waitHeap[i].index = i;
+        i = parent;
+      }
+      waitHeap[i] = entry;
+      entry.index = i;
+      return i;
+    }
+
+    private void siftDown(int i) {
+      OrderedKThread entry = waitHeap[i];
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= waitCount)
+          break;
+        if (child + 1 < waitCount &&
+            compare(waitHeap[child + 1], waitHeap[child]) < 0)
+          child++;
+        if (compare(entry, waitHeap[child]) <= 0)
+          break;
+        waitHeap[i] = waitHeap[child];
+        waitHeap[i].index = i;
+        i = child;
       }
+      waitHeap[i] = entry;
+      entry.index = i;
     }
+
     public void print() {
       Lib.assertTrue(Machine.interrupt().disabled());
       System.out.print("Queue size: ");
-      System.out.print(waitPQueue.size());
+      System.out.print(waitCount);
       System.out.print(", with: ");
-      for (Iterator i = waitPQueue.iterator(); i.hasNext();) {
-        KThread iter = (KThread)((OrderedKThread)i.next()).thread;
+      for (int i = 0; i < waitCount; i++) {
+        KThread iter = waitHeap[i].thread;
         System.out.print(iter + " effective priority: " +
                          getThreadState(iter).CEpriority + "\n");
       }
@@ -258,12 +437,141 @@ public class PriorityScheduler extends Scheduler {
      * threads to the owning thread.
      */
     public boolean transferPriority;
-    protected LinkedList<OrderedKThread> waitPQueue =
-        new LinkedList<OrderedKThread>();
+    protected OrderedKThread[] waitHeap = new OrderedKThread[8];
+    protected int waitCount = 0;
+    protected long nextOrder = 0;
+    /* cached MaxPriority(): the priority this queue donates to its holder */
+    protected int donation = priorityMinimum;
     protected LinkedList<OrderedKThread> AcquireList =
         new LinkedList<OrderedKThread>();
   }
 
+  /**
+   * A <tt>PriorityQueue</tt> for queues that do not transfer priority, most
+   * importantly the ready queue. Effective priorities only span
+   * <tt>priorityMinimum</tt> to <tt>priorityMaximum</tt>, so the waiting
+   * threads are kept in a FIFO list for each priority, with a bitmap of the
+   * lists that are not empty. The first thread is found with a single
+   * <tt>Integer.numberOfLeadingZeros()</tt>, and a new waiter is added, and
+   * any waiter removed, in constant time. A waiter whose effective priority
+   * changes keeps its place by waiting order, as it would in the heap, so
+   * moving it takes time linear in the number of later waiters in its new
+   * list.
+   *
+   * <p>
+   * Nothing is donated to the thread that has access, so it is not
+   * recorded.
+   */
+  protected class BitmapQueue extends PriorityQueue {
+    BitmapQueue() {
+      super(false);
+    }
+
+    public void waitForAccess(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      OrderedKThread temp = new OrderedKThread(thread, nextOrder++, this);
+      add(temp);
+      getThreadState(thread).waitForAccess(temp);
+    }
+
+    public void acquire(KThread thread) {
+      Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    public KThread nextThread() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      if (isEmpty())
+        return null;
+      OrderedKThread nextt = poll();
+      getThreadState(nextt.thread).RemoveWait(nextt);
+      return nextt.thread;
+    }
+
+    public OrderedKThread poll() {
+      OrderedKThread poll = heads[MaxPriority()];
+      remove(poll);
+      return poll;
+    }
+
+    public int MaxPriority() {
+      if (occupied == 0)
+        return priorityMinimum;
+      return 31 - Integer.numberOfLeadingZeros(occupied);
+    }
+
+    /*
+     * An entry's index is the priority whose list it is in. Within a list,
+     * entries stay in the order they started waiting, as in the heap; a new
+     * waiter always goes at the tail, and only a waiter that moves from
+     * another list has to look for its place.
+     */
+    protected void add(OrderedKThread entry) {
+      int priority = getThreadState(entry.thread).CEpriority;
+      OrderedKThread after = tails[priority];
+      while (after != null && after.order > entry.order)
+        after = after.prev;
+
+      entry.prev = after;
+      entry.next = (after == null) ? heads[priority] : after.next;
+      if (entry.prev == null)
+        heads[priority] = entry;
+      else
+        entry.prev.next = entry;
+      if (entry.next == null)
+        tails[priority] = entry;
+      else
+        entry.next.prev = entry;
+
+      entry.index = priority;
+      occupied |= 1 << priority;
+      waitCount++;
+      donation = MaxPriority();
+    }
+
+    protected void remove(OrderedKThread entry) {
+      int priority = entry.index;
+      if (entry.prev == null)
+        heads[priority] = entry.next;
+      else
+        entry.prev.next = entry.next;
+      if (entry.next == null)
+        tails[priority] = entry.prev;
+      else
+        entry.next.prev = entry.prev;
+
+      if (heads[priority] == null)
+        occupied &= ~(1 << priority);
+      entry.prev = entry.next = null;
+      entry.index = -1;
+      waitCount--;
+      donation = MaxPriority();
+    }
+
+    protected void reposition(OrderedKThread entry) {
+      if (entry.index != getThreadState(entry.thread).CEpriority) {
+        remove(entry);
+        add(entry);
+      }
+    }
+
+    public void print() {
+      Lib.assertTrue(Machine.interrupt().disabled());
+      System.out.print("Queue size: ");
+      System.out.print(waitCount);
+      System.out.print(", with: ");
+      for (int i = priorityMaximum; i >= priorityMinimum; i--) {
+        for (OrderedKThread iter = heads[i]; iter != null; iter = iter.next)
+          System.out.print(iter.thread + " effective priority: " + i + "\n");
+      }
+      System.out.print("\n");
+    }
+
+    private OrderedKThread[] heads = new OrderedKThread[priorityMaximum + 1];
+    private OrderedKThread[] tails = new OrderedKThread[priorityMaximum + 1];
+    /* bit i is set if the list for priority i is not empty */
+    private int occupied = 0;
+  }
+
   /*************************************************************************************************/
   /**
    * The scheduling state of a thread. This should include the thread's
@@ -303,33 +611,45 @@ public class PriorityScheduler extends Scheduler {
     public int updateEffectivePriority() {
       Lib.assertTrue(Machine.interrupt().disabled());
       int PrevCEpriority = CEpriority;
-      CEpriority = priority;
+      CEpriority = computeEffectivePriority();
+
+      /* the change of effective priority may affect the donation in other
+       * waiting queues*/
+      if (CEpriority != PrevCEpriority) {
+        if (Lib.test(dbgPriorityScheduler))
+          Lib.debug(dbgPriorityScheduler, "Thread " + thread
+                    + " now has effective priority " + CEpriority);
+
+        propagateDonation(this);
+      }
+
+      return CEpriority;
+    }
+
+    /* The priority of this thread, or the highest priority donated to it
+     * through the queues it holds, whichever is higher */
+    public int computeEffectivePriority() {
+      int effective = priority;
 
       for (Iterator i = AcquireList.iterator(); i.hasNext();) {
         OrderedKThread iter = (OrderedKThread)(i.next());
 
         if (((PriorityQueue)(iter.queue)).transferPriority) {
-          CEpriority = max(CEpriority,
+          effective = max(effective,
                   ((PriorityQueue)(iter.queue)).MaxPriority() );
         }
       }
 
-      /* the rise of effective priority may affect the donation in other waiting
-       * queues*/
-      if (CEpriority != PrevCEpriority) {
-        for (Iterator i = WaitList.iterator(); i.hasNext();) {
-          OrderedKThread iter = (OrderedKThread)(i.next());
+      return effective;
+    }
 
-          if (((PriorityQueue)(iter.queue)).transferPriority) {
-            ((PriorityQueue)(iter.queue)).CheckAcquire(CEpriority);
-          }
-        }
+    /* Fixes this thread's position in the queues it waits on, without
+     * passing the change on */
+    protected void repositionWaits() {
+      for (Iterator i = WaitList.iterator(); i.hasNext();) {
+        OrderedKThread iter = (OrderedKThread)(i.next());
+        ((PriorityQueue)(iter.queue)).reposition(iter);
       }
-
-      Lib.debug(dbgPriorityScheduler, "Thread " + thread
-              + " now has effective priority " + CEpriority);
-
-      return CEpriority;
     }
 
     /**
@@ -355,14 +675,37 @@ public class PriorityScheduler extends Scheduler {
      *
      * @see	nachos.threads.ThreadQueue#waitForAccess
      */
-    public void waitForAccess(OrderedKThread othread) { WaitList.add(othread); }
+    public void waitForAccess(OrderedKThread othread) {
+      addEntry(WaitList, othread);
+    }
 
-    public void RemoveWait(OrderedKThread othread) { WaitList.remove(othread); }
+    public void RemoveWait(OrderedKThread othread) {
+      removeEntry(WaitList, othread);
+    }
 
     public void RemoveAcquire(OrderedKThread othread) {
-      AcquireList.remove(othread);
+      removeEntry(AcquireList, othread);
       updateEffectivePriority();
     }
+
+    /* Adds entry to one of this thread's lists, remembering where it is */
+    protected void addEntry(ArrayList<OrderedKThread> list,
+                            OrderedKThread entry) {
+      entry.listIndex = list.size();
+      list.add(entry);
+    }
+
+    /* Removes entry from one of this thread's lists, by moving the last
+     * entry into its place */
+    protected void removeEntry(ArrayList<OrderedKThread> list,
+                               OrderedKThread entry) {
+      OrderedKThread last = list.remove(list.size() - 1);
+      if (last != entry) {
+        list.set(entry.listIndex, last);
+        last.listIndex = entry.listIndex;
+      }
+      entry.listIndex = -1;
+    }
     /**
      * Called when the associated thread has acquired access to whatever is
      * guarded by <tt>waitQueue</tt>. This can occur either as a result of
@@ -375,7 +718,7 @@ public class PriorityScheduler extends Scheduler {
      */
     public OrderedKThread acquire(PriorityQueue waitQueue) {
       OrderedKThread temp = new OrderedKThread(thread, 0, waitQueue);
-      AcquireList.add(temp);
+      addEntry(AcquireList, temp);
       return temp;
     }
     /** The thread with which this object is associated. */
@@ -384,10 +727,14 @@ public class PriorityScheduler extends Scheduler {
     protected int priority;
     /* Cached effective priority*/
     protected int CEpriority;
-    protected LinkedList<OrderedKThread> WaitList =
-        new LinkedList<OrderedKThread>();
-    protected LinkedList<OrderedKThread> AcquireList =
-        new LinkedList<OrderedKThread>();
+    /* The last donation epoch in which CEpriority changed, and how far along
+     * the chain of waiting threads this thread was then */
+    protected long donationEpoch = -1;
+    protected int donationDepth;
+    protected ArrayList<OrderedKThread> WaitList =
+        new ArrayList<OrderedKThread>();
+    protected ArrayList<OrderedKThread> AcquireList =
+        new ArrayList<OrderedKThread>();
   }
 
   /**
@@ -447,7 +794,114 @@ public class PriorityScheduler extends Scheduler {
     highBusy.join();
   }
 
+  /* the donation tests use a scheduler of their own, so that priorities
+   * are not tickets whichever scheduler the kernel uses */
+  public static void chainedDonationTest() {
+    PriorityScheduler scheduler = new PriorityScheduler();
+    KThread low = new KThread(), mid = new KThread(), high = new KThread();
+    ThreadQueue lockA = scheduler.newThreadQueue(true);
+    ThreadQueue lockB = scheduler.newThreadQueue(true);
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    scheduler.setPriority(low, 1);
+    scheduler.setPriority(mid, 3);
+    scheduler.setPriority(high, 6);
+
+    /* high waits for mid, which waits for low */
+    lockA.acquire(low);
+    lockB.acquire(mid);
+    lockA.waitForAccess(mid);
+    lockB.waitForAccess(high);
+    Lib.assertTrue(scheduler.getEffectivePriority(mid) == 6);
+    Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+
+    /* a change at the end of the chain reaches its head */
+    scheduler.setPriority(high, 7);
+    Lib.assertTrue(scheduler.getEffectivePriority(low) == 7);
+
+    /* releasing a lock withdraws what its waiters donated */
+    Lib.assertTrue(lockA.nextThread() == mid);
+    Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+    Lib.assertTrue(scheduler.getEffectivePriority(mid) == 7);
+
+    Lib.assertTrue(lockB.nextThread() == high);
+    Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("PriorityScheduler chained donation passed.");
+  }
+
+  public static void donationCycleTest() {
+    PriorityScheduler scheduler = new PriorityScheduler();
+    KThread a = new KThread(), b = new KThread();
+    ThreadQueue lockA = scheduler.newThreadQueue(true);
+    ThreadQueue lockB = scheduler.newThreadQueue(true);
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    scheduler.setPriority(a, 2);
+    scheduler.setPriority(b, 4);
+
+    /* a and b each wait for the lock the other holds */
+    lockA.acquire(a);
+    lockB.acquire(b);
+    lockA.waitForAccess(b);
+    lockB.waitForAccess(a);
+    Lib.assertTrue(scheduler.getEffectivePriority(a) == 4);
+    Lib.assertTrue(scheduler.getEffectivePriority(b) == 4);
+
+    /* a change goes round the cycle once, and stops */
+    scheduler.setPriority(a, 5);
+    Lib.assertTrue(scheduler.getEffectivePriority(a) == 5);
+    Lib.assertTrue(scheduler.getEffectivePriority(b) == 5);
+
+    /* once the cycle is broken, nothing is left of it */
+    Lib.assertTrue(lockA.nextThread() == b);
+    scheduler.setPriority(a, 1);
+    Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+    Lib.assertTrue(scheduler.getEffectivePriority(b) == 4);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("PriorityScheduler donation cycle passed.");
+  }
+
+  public static void bitmapQueueTest() {
+    PriorityScheduler scheduler = new PriorityScheduler();
+    ThreadQueue queue = scheduler.newThreadQueue(false);
+    int[] priorities = { 2, 5, 2, 5, 0 };
+    KThread[] threads = new KThread[priorities.length];
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    for (int i = 0; i < priorities.length; i++) {
+      threads[i] = new KThread();
+      scheduler.setPriority(threads[i], priorities[i]);
+      queue.waitForAccess(threads[i]);
+    }
+
+    /* threads that change priority while waiting keep their places among
+     * the threads at their new priority, by when they started waiting */
+    scheduler.setPriority(threads[2], 5);
+    scheduler.setPriority(threads[1], 0);
+
+    /* highest priority first, first come first served within one */
+    int[] order = { 2, 3, 0, 1, 4 };
+    for (int i = 0; i < order.length; i++)
+      Lib.assertTrue(queue.nextThread() == threads[order[i]]);
+    Lib.assertTrue(queue.nextThread() == null);
+
+    Machine.interrupt().restore(intStatus);
+
+    System.out.println("PriorityScheduler BitmapQueue order passed.");
+  }
+
   public static void selfTest() {
     joinDeadlockTest();
+    chainedDonationTest();
+    donationCycleTest();
+    bitmapQueueTest();
   }
 }
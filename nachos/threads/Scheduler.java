@@ -51,6 +51,20 @@ public abstract class Scheduler {
    */
   public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+  /**
+   * Allocate the queue of threads waiting for the processor. A scheduler
+   * that needs to know when threads start and stop running can return a
+   * queue of its own, since <tt>nextThread()</tt> is called on it at every
+   * context switch, while the thread that is giving up the processor is
+   * still the current thread. The default is
+   * <tt>newThreadQueue(false)</tt>.
+   *
+   * @return	a new ready queue.
+   */
+  public ThreadQueue newReadyQueue() {
+    return newThreadQueue(false);
+  }
+
   /**
    * Get the priority of the specified thread. Must be called with
    * interrupts disabled.
@@ -147,4 +161,31 @@ public abstract class Scheduler {
    *		thread's priority.
    */
   public boolean decreasePriority() { return false; }
+
+  /**
+   * Called by the alarm on every timer interrupt, to decide whether to
+   * preempt the current thread. A scheduler can use this to charge the
+   * current thread for the time it has run, and to let it keep the
+   * processor until its time slice is used up. The default implementation
+   * preempts on every interrupt.
+   *
+   * @return	<tt>true</tt> if the current thread should yield.
+   */
+  public boolean preemptingCurrentThread() { return true; }
+
+  /**
+   * Called when the current thread is about to block for I/O, or for
+   * another thread, rather than being preempted. A scheduler can use this to
+   * favour threads that do not use all of their time slice. The default
+   * implementation does nothing.
+   */
+  public void blockingCurrentThread() {}
+
+  /**
+   * Called with interrupts disabled when the current thread is finishing,
+   * before it gives up the processor for the last time. A scheduler can use
+   * this to release anything it reserved for the thread. The default
+   * implementation does nothing.
+   */
+  public void finishingCurrentThread() {}
 }
@@ -0,0 +1,182 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Threads hold tickets exactly as in a lottery scheduler, and tickets are
+ * transferred the same way. Instead of holding a lottery, a queue gives each
+ * waiting thread a <i>pass</i>, and always chooses the thread with the
+ * smallest one. A chosen thread's next pass is further along by its
+ * <i>stride</i>, which is inversely proportional to its tickets, so threads
+ * are chosen in proportion to their tickets, to within one choice, and the
+ * order is the same on every run.
+ *
+ * <p>
+ * Passes are kept relative to the queue: each queue has a virtual time, the
+ * pass of the thread it chose last, and a thread starting to wait gets a pass
+ * one stride after it. A thread that was away cannot catch up on the turns it
+ * missed.
+ */
+public class StrideScheduler extends LotteryScheduler {
+  /**
+   * Allocate a new stride scheduler.
+   */
+  public StrideScheduler() {}
+
+  /**
+   * Allocate a new stride thread queue.
+   *
+   * @param	transferPriority	<tt>true</tt> if this queue should
+   *					transfer tickets from waiting threads
+   *					to the owning thread.
+   * @return	a new stride thread queue.
+   */
+  @Override
+  public ThreadQueue newThreadQueue(boolean transferPriority) {
+    return new StrideQueue(transferPriority);
+  }
+
+  @Override
+  protected StrideThreadState getThreadState(KThread thread) {
+    if (thread.schedulingState == null)
+      thread.schedulingState = new StrideThreadState(thread);
+
+    return (StrideThreadState)thread.schedulingState;
+  }
+
+  /** The stride of a thread holding a single ticket. */
+  public static final long stride1 = 1L << 24;
+
+  /*************************************************************************************************/
+  /**
+   * A <tt>ThreadQueue</tt> that chooses the waiting thread with the smallest
+   * pass. Waiters are also kept in the lottery slots, which maintain the
+   * total of their tickets for transfer.
+   */
+  protected class StrideQueue extends LotteryQueue {
+    StrideQueue(boolean transferPriority) {
+      super(transferPriority);
+    }
+
+    @Override
+    protected void addWaiter(OrderedKThread entry, int tickets) {
+      StrideThreadState state = getThreadState(entry.thread);
+      state.pass = virtualTime + Math.max(stride1 / tickets, 1);
+      entry.order = nextOrder++;
+
+      super.addWaiter(entry, tickets);
+      passHeap.add(entry);
+    }
+
+    /* choose the waiter with the smallest pass, and remove it */
+    @Override
+    public OrderedKThread poll2() {
+      OrderedKThread next = passHeap.poll();
+      removeWaiter(next);
+
+      StrideThreadState state = getThreadState(next.thread);
+      virtualTime = state.pass;
+      return next;
+    }
+
+    /* the pass of the thread chosen last */
+    private long virtualTime = 0;
+    /* passes do not change while threads wait, so the heap needs no
+     * repositioning when tickets are transferred */
+    private java.util.PriorityQueue<OrderedKThread> passHeap =
+        new java.util.PriorityQueue<OrderedKThread>(11,
+            new Comparator<OrderedKThread>() {
+              public int compare(OrderedKThread t1, OrderedKThread t2) {
+                int Cmpr = Long.compare(getThreadState(t1.thread).pass,
+                                        getThreadState(t2.thread).pass);
+                if (Cmpr == 0)
+                  Cmpr = Long.compare(t1.order, t2.order);
+                return Cmpr;
+              }
+            });
+  }
+
+  /*************************************************************************************************/
+
+  protected class StrideThreadState extends newThreadState {
+    public StrideThreadState(KThread thread) {
+      super(thread);
+    }
+
+    /* this thread's pass in the queue it waits on */
+    protected long pass;
+  }
+
+  /**
+   * Tests for StrideScheduler. They need it to be the kernel's scheduler.
+   */
+  private static class turnTest implements Runnable {
+    turnTest(int[] turns, int index, int totalTurns, Semaphore finished) {
+      this.turns = turns;
+      this.index = index;
+      this.totalTurns = totalTurns;
+      this.finished = finished;
+    }
+
+    /* take turns until the threads have had <tt>totalTurns</tt> between
+     * them; the last slot of <tt>turns</tt> holds the total */
+    public void run() {
+      while (turns[turns.length - 1] < totalTurns) {
+        turns[index]++;
+        turns[turns.length - 1]++;
+        KThread.yield();
+      }
+      finished.V();
+    }
+
+    private int[] turns;
+    private int index, totalTurns;
+    private Semaphore finished;
+  }
+
+  public static void proportionTest() {
+    int[] tickets = { 1, 2, 4 };
+    int totalTurns = 700;
+    int[] turns = new int[tickets.length + 1];
+    /* a semaphore rather than join(), which would lend this thread's
+     * tickets to the thread joined */
+    Semaphore finished = new Semaphore(0);
+    KThread[] threads = new KThread[tickets.length];
+
+    for (int i = 0; i < tickets.length; i++) {
+      threads[i] = new KThread(new turnTest(turns, i, totalTurns, finished));
+      threads[i].setName("tickets " + tickets[i]);
+    }
+
+    boolean intStatus = Machine.interrupt().disable();
+
+    for (int i = 0; i < tickets.length; i++) {
+      ThreadedKernel.scheduler.setPriority(threads[i], tickets[i]);
+      threads[i].fork();
+    }
+
+    Machine.interrupt().restore(intStatus);
+
+    for (int i = 0; i < tickets.length; i++)
+      finished.P();
+
+    System.out.print("StrideScheduler turns:");
+    for (int i = 0; i < tickets.length; i++)
+      System.out.print(" " + turns[i] + " for " + tickets[i] + " tickets");
+    System.out.println();
+
+    /* 700 turns over 7 tickets is 100 a ticket, give or take the turns the
+     * timer takes */
+    for (int i = 0; i < tickets.length; i++)
+      Lib.assertTrue(Math.abs(turns[i] - 100 * tickets[i]) <= 5);
+  }
+
+  public static void selfTest() {
+    proportionTest();
+  }
+}
@@ -42,8 +42,10 @@ public class SynchList {
     Object o;
 
     lock.acquire();
-    while (list.isEmpty())
+    while (list.isEmpty()) {
+      ThreadedKernel.scheduler.blockingCurrentThread();
       listEmpty.sleep();
+    }
     o = list.removeFirst();
     lock.release();
 
@@ -52,6 +52,11 @@ public class ThreadedKernel extends Kernel {
   //  Communicator.selfTest();
 //    Boat.selfTest();
 //    PriorityScheduler.selfTest();
+//    LotteryScheduler.selfTest();
+//    MLFQScheduler.selfTest();
+//    FairScheduler.selfTest();
+//    EDFScheduler.selfTest();
+//    StrideScheduler.selfTest();
     if (Machine.bank() != null) {
       ElevatorBank.selfTest();
     }
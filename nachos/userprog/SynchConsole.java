@@ -42,6 +42,8 @@ public class SynchConsole {
     readLock.acquire();
 
     if (block || charAvailable) {
+      if (!charAvailable)
+        ThreadedKernel.scheduler.blockingCurrentThread();
       charAvailable = false;
       readWait.P();
 
@@ -76,6 +78,7 @@ public class SynchConsole {
   public void writeByte(int value) {
     writeLock.acquire();
     console.writeByte(value);
+    ThreadedKernel.scheduler.blockingCurrentThread();
     writeWait.P();
     writeLock.release();
   }
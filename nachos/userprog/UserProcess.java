@@ -90,7 +90,10 @@ public class UserProcess {
    * Restore the state of this process after a context switch. Called by
    * <tt>UThread.restoreState()</tt>.
    */
-  public void restoreState() { Machine.processor().setPageTable(pageTable); }
+  public void restoreState() {
+    Machine.processor().setPageTable(pageTable);
+    Machine.processor().setProfile(profile);
+  }
 
   /**
    * Read a null-terminated string from this process's virtual memory. Read
@@ -287,6 +290,11 @@ public class UserProcess {
       return false;
     }
 
+    if (Config.getBoolean("Processor.profile", false)) {
+      coff.loadSymbols();
+      profile = new Profile(name);
+    }
+
     // make sure the sections are contiguous and start at page 0
     numPages = 0;
     for (int s = 0; s < coff.getNumSections(); s++) {
@@ -400,6 +408,7 @@ public class UserProcess {
   }
 
   private void finish() {
+    printProfile();
     coff.close();
     for (int i = 0; i < 16; i++) {
       if (FileDescr[i] != null) {
@@ -452,6 +461,7 @@ public class UserProcess {
       return 0;
     }
 
+    printProfile();
     Machine.halt();
 
     Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -822,9 +832,20 @@ public class UserProcess {
     memoryTest();
   }
 
+  /**
+   * Print this process's execution profile, if profiling is enabled.
+   */
+  protected void printProfile() {
+    if (profile != null)
+      profile.print(coff, 20);
+  }
+
   /** The program being run by this process. */
   protected Coff coff;
 
+  /** The instructions executed by this process, if profiling. */
+  protected Profile profile = null;
+
   /** This process's page table. */
   protected TranslationEntry[] pageTable;
   /** The number of contiguous pages occupied by the program. */